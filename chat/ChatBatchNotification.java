@@ -0,0 +1,212 @@
+// ChatBatchNotification.java
+// 2026-10-18 First version
+
+/**
+ * This class implements a notification that carries several consecutive
+ * chat messages in a single remote call. The sequence number of the event
+ * (obtained by calling getSequenceNumber ()) is the sequence number of the
+ * first message in the batch; the message at index i has sequence number
+ * getSequenceNumber () + i.
+ */
+public class ChatBatchNotification extends RemoteEvent
+{
+
+  /**
+   * The messages, in sequence order. A message may be a MemberEvent,
+   * which is sent as its kind and names rather than as text, and is
+   * unpacked as a MemberEvent again on the receiving side. A message
+   * may also be null: one that the server did not send to the client
+   * because it came from a user the client has blocked. It only takes
+   * up its sequence number, so the client sees no gap.
+   */
+  protected ChatNotification [] notes;
+
+  /**
+   * The kind byte of a message that was left out.
+   */
+  protected static final int SKIPPED = -1;
+
+  /**
+   * Creates a new ChatBatchNotification instance.
+   * @param source   The object from which this instance originates.
+   * @param texts    The message texts, in sequence order.
+   * @param firstSeq The serial number of the first message in the batch.
+   */
+  public ChatBatchNotification (Object source, String [] texts, long firstSeq) {
+    super (source,		// Source
+	   0,			// ID
+	   firstSeq,		// sequence number of the first message
+	   null);		// handback
+    notes = new ChatNotification [texts.length];
+    for (int i = 0; i < texts.length; i++)
+      notes[i] = new ChatNotification (this, texts[i], (int) (firstSeq + i));
+  }
+
+  /**
+   * Creates a new ChatBatchNotification from consecutive notifications.
+   * The batch carries the event id of the notifications, which must all
+   * be the same.
+   * @param source The object from which this instance originates.
+   * @param notes  The notifications, in sequence order.
+   */
+  public ChatBatchNotification (Object source, ChatNotification [] notes) {
+    super (source,		// Source
+	   notes[0].getID (),	// ID
+	   notes[0].getSequenceNumber (), // sequence number of the first message
+	   null);		// handback
+    this.notes = notes;
+  }
+
+  /**
+   * Creates a new ChatBatchNotification from consecutive notifications
+   * of which some may have been left out, that is, be null.
+   * @param source   The object from which this instance originates.
+   * @param id       The event id of the notifications.
+   * @param firstSeq The serial number of the first message in the batch.
+   * @param notes    The notifications, in sequence order; null for a
+   *                 message that is left out.
+   */
+  public ChatBatchNotification (Object source, long id, long firstSeq,
+				ChatNotification [] notes) {
+    super (source,		// Source
+	   id,			// ID
+	   firstSeq,		// sequence number of the first message
+	   null);		// handback
+    this.notes = notes;
+  }
+
+  /**
+   * Creates an empty ChatBatchNotification, to be filled in by
+   * readExternal ().
+   */
+  public ChatBatchNotification () {
+  }
+
+  /**
+   * Returns the number of messages in the batch.
+   * @return The number of messages.
+   */
+  public int size () {
+    return notes.length;
+  }
+
+  /**
+   * Returns the text of one message in the batch.
+   * @param i The index of the message, 0 to size () - 1.
+   * @return The text message, or null if the message was left out.
+   */
+  public String getText (int i) {
+    return (notes[i] == null) ? null : notes[i].getText ();
+  }
+
+  /**
+   * Tells whether any message of the batch was left out.
+   * @return True if getNotification () returns null for some index.
+   */
+  public boolean hasSkipped () {
+    for (ChatNotification note : notes)
+      if (note == null)
+	return true;
+    return false;
+  }
+
+  /**
+   * Returns one message of the batch as a notification of its own, so
+   * that it can be handled in the same way as a message sent on its own.
+   * @param i The index of the message, 0 to size () - 1.
+   * @return The notification with the sequence number of message i; a
+   *         MemberEvent if the message is one, or null if it was left
+   *         out.
+   */
+  public ChatNotification getNotification (int i) {
+    return notes[i];
+  }
+
+  public void writeExternal (java.io.ObjectOutput out)
+    throws java.io.IOException
+  {
+    // Each timestamp is written as the difference from the one before,
+    // which for messages that arrived together takes a byte or two.
+
+    super.writeExternal (out);
+    ChatNotification.writeVarLong (out, notes.length);
+    long time = 0;
+    for (int i = 0; i < notes.length; i++) {
+      ChatNotification note = notes[i];
+      if (note == null) {
+	out.writeByte (SKIPPED);
+	continue;
+      }
+      if (note instanceof MemberEvent) {
+	MemberEvent m = (MemberEvent) note;
+	out.writeByte (m.getKind ()
+		       | ((note.messageId != 0) ? ChatNotification.HAS_MESSAGE_ID : 0));
+	if (note.messageId != 0)
+	  ChatNotification.writeVarLong (out, note.messageId);
+	ChatNotification.writeSignedVarLong (out, note.timestamp - time);
+	ChatNotification.writeBytes (out, ChatNotification.encodeText (m.getName ()));
+	ChatNotification.writeBytes (out, ChatNotification.encodeText (m.getOldName ()));
+      } else {
+	byte [] z = note.compressedText;
+	out.writeByte (0);
+	out.writeByte (note.type
+		       | ((z != null) ? ChatNotification.COMPRESSED : 0)
+		       | ((note.messageId != 0) ? ChatNotification.HAS_MESSAGE_ID : 0));
+	ChatNotification.writeVarLong (out, note.senderId);
+	if (note.senderId != 0)
+	  ChatNotification.writeVarLong (out, note.senderNameLength);
+	if (note.messageId != 0)
+	  ChatNotification.writeVarLong (out, note.messageId);
+	ChatNotification.writeSignedVarLong (out, note.timestamp - time);
+	ChatNotification.writeBytes (out, (z != null) ? z : note.getEncodedText ());
+      }
+      time = note.timestamp;
+    }
+  }
+
+  public void readExternal (java.io.ObjectInput in)
+    throws java.io.IOException, ClassNotFoundException
+  {
+    super.readExternal (in);
+    long n = ChatNotification.readVarLong (in);
+    if (n > Integer.MAX_VALUE)
+      throw new java.io.StreamCorruptedException ("Bad batch size " + n);
+    notes = new ChatNotification [(int) n];
+    long time = 0;
+    for (int i = 0; i < notes.length; i++) {
+      int kind = in.readByte ();
+      ChatNotification note;
+      if (kind == SKIPPED) {
+	continue;
+      } else if (kind == 0) {
+	int type = in.readByte ();
+	long sender = ChatNotification.readVarLong (in);
+	int nameLength = (sender != 0) ? (int) ChatNotification.readVarLong (in) : 0;
+	long id = ((type & ChatNotification.HAS_MESSAGE_ID) != 0)
+	  ? ChatNotification.readVarLong (in) : 0;
+	time += ChatNotification.readSignedVarLong (in);
+	note = new ChatNotification (this, null, (int) (seqNum + i));
+	note.setText (ChatNotification.readBytes (in),
+		      (type & ChatNotification.COMPRESSED) != 0);
+	note.type = type & ~(ChatNotification.COMPRESSED
+			     | ChatNotification.HAS_MESSAGE_ID);
+	note.senderId = sender;
+	note.senderNameLength = nameLength;
+	note.messageId = id;
+      } else {
+	long id = ((kind & ChatNotification.HAS_MESSAGE_ID) != 0)
+	  ? ChatNotification.readVarLong (in) : 0;
+	time += ChatNotification.readSignedVarLong (in);
+	String name = ChatNotification.decodeText (ChatNotification.readBytes (in));
+	String oldName = ChatNotification.decodeText (ChatNotification.readBytes (in));
+	note = new MemberEvent (this, kind & ~ChatNotification.HAS_MESSAGE_ID,
+				name, oldName);
+	note.seqNum = seqNum + i;
+	note.messageId = id;
+      }
+      note.timestamp = time;
+      note.eventID = eventID;
+      notes[i] = note;
+    }
+  }
+}
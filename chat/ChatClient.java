@@ -11,6 +11,7 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
 
+import java.rmi.NoSuchObjectException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
@@ -18,13 +19,15 @@ import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class implements the ChatClient application.
  */
 public class ChatClient
-        extends
-        UnicastRemoteObject        // Since we accept remote calls
         implements
         RemoteEventListener // So we can receive chat notifications
 {
@@ -40,8 +43,9 @@ public class ChatClient
 
     /**
      * Refers to the service object of the currently connected chat-service.
+     * Read by the sender thread.
      */
-    protected ChatServerInterface myServer = null;
+    protected volatile ChatServerInterface myServer = null;
 
     /**
      * The name the user has choosen to present itself as.
@@ -53,9 +57,11 @@ public class ChatClient
     }
 
     /**
-     * The user's current status. If true, the user is marked as away
-     * from keyboard.
+     * The user's current status, as last told to the server: true if
+     * the user is marked as away from keyboard. A new registration
+     * starts out active.
      */
+    protected volatile boolean away = false;
 
     /**
      * This is the time-out value for the user's status. If the user
@@ -64,20 +70,217 @@ public class ChatClient
      */
     protected final static Integer timeOut = 30;
 
-    protected HashSet<String> blockedUsers;
+    /**
+     * How often, in milliseconds, the timer thread checks whether the
+     * user has gone away or come back.
+     */
+    protected static final long PRESENCE_CHECK_MILLIS = 1000;
+
+    /**
+     * When the user last typed a line, from System.nanoTime (). The
+     * input loop only sets this; the timer thread works out the status
+     * from it and tells the server when it changes.
+     */
+    protected volatile long lastActivity = System.nanoTime();
+
+    /**
+     * True while we have the server send us who is away (the
+     * '.presence' command), and what it last told us, by name. The
+     * table is filled in by the render thread.
+     */
+    protected volatile boolean watchingPresence = false;
+    protected final ConcurrentHashMap<String, Integer> presence =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The sequence number of the last PresenceEvent taken into the
+     * presence table. Only used by the render thread.
+     */
+    protected long presenceSerial = 0;
 
-    protected boolean requestUsers = false;
+    protected Set<String> blockedUsers;
 
-    protected Boolean isRunning = false;
+    /**
+     * The room we are in, and its id. Notifications from other rooms
+     * (still on their way when we changed rooms) are ignored.
+     */
+    protected String myRoom = ChatServerInterface.LOBBY;
+    protected long myRoomId = 0;
 
-    protected boolean waitingForNameFromServer = false;
+    /**
+     * The sequence number of the last message shown, and the server
+     * and room it came from. When reconnecting to the same server and
+     * room, the messages after lastSeq are fetched so that nothing is
+     * missed. Only used by the render thread.
+     */
+    protected long lastSeq = 0;
+    protected String lastStream = null;
+
+    /**
+     * The room the render thread shows messages from, its id and the
+     * server it is on. The id is -1 while we are not connected. Only
+     * used by the render thread; it learns of changes through a
+     * RoomChange in the inbox.
+     */
+    protected String renderRoom = null;
+    protected long renderRoomId = -1;
+    protected ChatServerInterface renderServer = null;
+
+    /**
+     * How long, in milliseconds, the render thread waits for a missing
+     * message before it asks the server for it.
+     */
+    protected static final long GAP_MILLIS = 1000;
+
+    /**
+     * The most items the inbox holds.
+     */
+    protected static final int INBOX_CAPACITY = 256;
+
+    /**
+     * What notify() has received and the room changes we made, in the
+     * order they happened, waiting for the render thread. The RMI or
+     * stream thread that delivers a notification only puts it here, so
+     * that a console that is briefly slow does not hold up delivery.
+     * The inbox is bounded: once the console falls INBOX_CAPACITY items
+     * behind, notify() waits for it. Over NIO that stops us granting
+     * the server credit, and over RMI it holds up the server's call,
+     * so the server slows down instead of us running out of memory.
+     */
+    protected final LinkedBlockingQueue<Object> inbox =
+            new LinkedBlockingQueue<>(INBOX_CAPACITY);
+
+    /**
+     * Messages that arrived ahead of one that is still missing, by
+     * sequence number, and when the first of them arrived (from
+     * System.nanoTime ()). Only used by the render thread.
+     */
+    protected final TreeMap<Long, ChatNotification> early = new TreeMap<>();
+    protected long gapSince = 0;
+
+    /**
+     * Tells the render thread that we are in another room, or on
+     * another server, from here on in the inbox.
+     */
+    protected static class RoomChange {
+        final ChatServerInterface server;
+        final String serverName;
+        final String room;
+        final long roomId;
+
+        RoomChange(ChatServerInterface server, String serverName, String room, long roomId) {
+            this.server = server;
+            this.serverName = serverName;
+            this.room = room;
+            this.roomId = roomId;
+        }
+    }
 
     /**
      * The timer object that is used to schedule the user's status change
      */
     Timer timer = new Timer();
 
-    private TimerTask task;
+    /**
+     * The task that renews our lease with the connected server, or null
+     * when we are not connected.
+     */
+    protected TimerTask leaseTask = null;
+
+    /**
+     * True to have servers stream notifications to us over the NIO
+     * transport when they offer it, false to always use RMI callbacks.
+     * Set with the '.transport' command.
+     */
+    protected boolean useNio = true;
+
+    /**
+     * True while we are exported for RMI callbacks. We only accept
+     * remote calls while connected to a server that calls us back;
+     * a streaming client accepts no inbound connections at all.
+     */
+    protected boolean exported = false;
+
+    /**
+     * The most messages sent to the server in one call.
+     */
+    protected static final int MAX_PIPELINE = 64;
+
+    /**
+     * The messages the user has typed that are not sent yet, in order.
+     * The sender thread takes whatever has queued up and sends it in
+     * one call, so that the input loop never waits for the server.
+     */
+    protected final LinkedBlockingQueue<OutgoingMessage> outbox =
+            new LinkedBlockingQueue<>();
+
+    /**
+     * A message on its way to the server. The future completes with the
+     * sequence number the server gave it.
+     */
+    protected static class OutgoingMessage {
+        final String text;
+        final CompletableFuture<Long> sent = new CompletableFuture<>();
+
+        OutgoingMessage(String text) {
+            this.text = text;
+        }
+    }
+
+    /**
+     * The latency of the messages received, from when the server got
+     * them to when the render thread takes them. Kept as a histogram
+     * with one bucket per power of two microseconds, so recording is
+     * cheap and takes no memory per message.
+     */
+    protected static class LatencyStats {
+        private final long[] buckets = new long[64];
+        private long count = 0;
+        private long total = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+
+        /**
+         * Records the latency of one message.
+         *
+         * @param nanos The latency in nanoseconds. It may be negative if
+         *              the clocks of the server and client disagree.
+         */
+        synchronized void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            buckets[64 - Long.numberOfLeadingZeros(micros)]++;
+            count++;
+            total += nanos;
+            min = Math.min(min, nanos);
+            max = Math.max(max, nanos);
+        }
+
+        /**
+         * Returns the latency below which a fraction of the messages
+         * were, rounded up to the bucket limit.
+         */
+        private long percentile(double fraction) {
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= fraction * count)
+                    return Math.min(max, (i == 0) ? 0 : (1L << i) * 1000);
+            }
+            return max;
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (count == 0)
+                return "No messages received";
+            return String.format("%d messages, latency min %.3f, mean %.3f,"
+                            + " p50 <= %.3f, p99 <= %.3f, max %.3f ms",
+                    count, min / 1e6, total / 1e6 / count,
+                    percentile(0.5) / 1e6, percentile(0.99) / 1e6, max / 1e6);
+        }
+    }
+
+    protected final LatencyStats latency = new LatencyStats();
 
     /* *** Constructor *** */
 
@@ -85,8 +288,33 @@ public class ChatClient
      * Creates a new ChatClient instance.
      */
     public ChatClient() throws RemoteException {
-        blockedUsers = new HashSet<>();
+        blockedUsers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
         scanForChatServers();
+
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        }, "chat-sender");
+        sender.setDaemon(true);
+        sender.start();
+
+        Thread renderer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                renderLoop();
+            }
+        }, "chat-render");
+        renderer.setDaemon(true);
+        renderer.start();
+
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                checkPresence();
+            }
+        }, PRESENCE_CHECK_MILLIS, PRESENCE_CHECK_MILLIS);
     }
 
     /**
@@ -133,12 +361,40 @@ public class ChatClient
      */
     protected void disconnect(ChatServerInterface server) {
         if (server != null) {
+            stopLeaseRenewal();
+            flushOutbox();
             try {
                 String serverName = server.getName();
                 server.unregister(this);
                 System.out.println("[Disconnected from " + serverName + "]");
             } catch (RemoteException rex) {
             }
+            enqueue(new RoomChange(null, null, null, -1));
+            unexportListener();
+        }
+    }
+
+    /**
+     * Exports us so that a server can call notify() over RMI.
+     */
+    protected void exportListener() throws RemoteException {
+        if (!exported) {
+            UnicastRemoteObject.exportObject(this, 0);
+            exported = true;
+        }
+    }
+
+    /**
+     * Stops accepting RMI calls, if we were exported.
+     */
+    protected void unexportListener() {
+        if (exported) {
+            try {
+                UnicastRemoteObject.unexportObject(this, true);
+            } catch (NoSuchObjectException nsox) {
+                // Not exported after all.
+            }
+            exported = false;
         }
     }
 
@@ -159,8 +415,8 @@ public class ChatClient
      * servername pattern is supplied, the known chat services are
      * scanned for names in which the pattern is a substring. If a null
      * or empty pattern is supplied, the connection attempt is directed
-     * at the first known server (regardless of whether it is answering
-     * or not). Any current service is disconnected.
+     * at the least loaded of the known servers that answer. Any current
+     * service is disconnected.
      *
      * @param serviceName The substring to match against the server name.
      */
@@ -180,7 +436,7 @@ public class ChatClient
 
         if (serviceName == null || serviceName.isEmpty()) {
             nofMatches = 1;
-            selectedServiceName = servers.get(0);
+            selectedServiceName = leastLoadedServer();
         } else
             for (String name : servers)
                 if (name.contains(serviceName)) {
@@ -216,10 +472,27 @@ public class ChatClient
             // Verify that it is indeed what we expect
 
             if (service instanceof ChatServerInterface) {
-                waitingForNameFromServer = true;
-                myServer = (ChatServerInterface) service;
-                myServer.register(this);
-                System.out.printf("[Connected to %s]\n", selectedServiceName);
+                ChatServerInterface server = (ChatServerInterface) service;
+                String address = useNio ? server.getTransportAddress() : null;
+                if (address != null) {
+                    server = NioServerStub.connect(address);
+                } else {
+                    if (useNio)
+                        System.out.println("[Server offers RMI only]");
+                    exportListener();
+                }
+                synchronized (this) {
+                    myServer = server;
+                    ChatLease lease = myServer.register(this, myName);
+                    myName = lease.getName();
+                    System.out.printf("[Connected to %s as %s]\n",
+                            selectedServiceName, myName);
+                    startLeaseRenewal(myServer, lease.getDuration());
+                    rejoinRoom(myServer);
+                    restoreBlocks(myServer);
+                    catchUp(selectedServiceName);
+                    restorePresence(myServer);
+                }
             }
         } catch (Exception e) {
             System.out.printf("[Unable to connect: %s]\n", e.toString());
@@ -228,6 +501,119 @@ public class ChatClient
 
     } // method connectToChat
 
+    /**
+     * Starts renewing the lease on a server three times per lease
+     * period, so that one lost renewal does not cost us the
+     * registration. If the server has dropped us anyway, we register
+     * again under the same name.
+     *
+     * @param server   The server we registered with.
+     * @param duration The lease duration in milliseconds.
+     */
+    protected synchronized void startLeaseRenewal(final ChatServerInterface server,
+                                                  long duration) {
+        stopLeaseRenewal();
+
+        long period = Math.max(100, duration / 3);
+        leaseTask = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    if (server.renew(ChatClient.this) == 0) {
+                        synchronized (ChatClient.this) {
+                            myName = server.register(ChatClient.this, myName).getName();
+                            rejoinRoom(server);
+                            restoreBlocks(server);
+                            restorePresence(server);
+                        }
+                        System.out.println("[Registration lost, registered again as " + myName + "]");
+                    }
+                } catch (RemoteException rex) {
+                    System.out.println("[Unable to renew lease]");
+                }
+            }
+        };
+        timer.schedule(leaseTask, period, period);
+    }
+
+    /**
+     * Goes back to the room we were in after registering, since a new
+     * registration starts out in the lobby.
+     *
+     * @param server The server we just registered with.
+     */
+    protected synchronized void rejoinRoom(ChatServerInterface server)
+            throws RemoteException {
+        myRoomId = 0;
+        if (!ChatServerInterface.LOBBY.equals(myRoom)) {
+            myRoomId = server.join(this, myRoom);
+            if (myRoomId < 0) {
+                myRoom = ChatServerInterface.LOBBY;
+                myRoomId = 0;
+            } else {
+                System.out.printf("[Joined room %s]\n", myRoom);
+            }
+        }
+    }
+
+    /**
+     * Stops renewing the lease, if we are.
+     */
+    protected synchronized void stopLeaseRenewal() {
+        if (leaseTask != null) {
+            leaseTask.cancel();
+            leaseTask = null;
+        }
+    }
+
+    /**
+     * Asks each known server for its load and returns the name of the
+     * least loaded one. Servers that do not answer are passed over.
+     *
+     * @return The server name; the first known server if none answers.
+     */
+    protected String leastLoadedServer() {
+        String best = servers.get(0);
+        int bestLoad = Integer.MAX_VALUE;
+
+        try {
+            Registry registry = LocateRegistry.getRegistry(null);
+            for (String name : servers) {
+                try {
+                    Remote service = registry.lookup(name);
+                    if (service instanceof ChatServerInterface) {
+                        int load = ((ChatServerInterface) service).getLoad();
+                        if (load < bestLoad) {
+                            best = name;
+                            bestLoad = load;
+                        }
+                    }
+                } catch (Exception e) {
+                    // Not answering; try the next one.
+                }
+            }
+        } catch (Exception e) {
+            // No registry; fall back on the first server.
+        }
+
+        return best;
+    }
+
+    /**
+     * Has the messages that were sent in our room while this client was
+     * not connected to the given server shown. On the first connection
+     * to a server, or the first visit to a room, this is all the recent
+     * history the server keeps for the room. The render thread fetches
+     * them when it gets to this point in the inbox, so notifications
+     * that arrived before are shown first, and those it has already
+     * shown are skipped.
+     *
+     * @param serverName The registry name of the server just connected to.
+     */
+    protected synchronized void catchUp(String serverName) {
+        enqueue(new RoomChange(myServer, serverName, myRoom, myRoomId));
+    }
+
     /**
      * This method implements the '.name' user command. It sets the name
      * the user has choosen for herself on the chat. If the name is null
@@ -237,7 +623,6 @@ public class ChatClient
      * @param newName The user's name.
      */
     protected void setName(String newName) {
-        String oldName = myName;
         myName = newName;
 
         if (myName != null) {
@@ -252,46 +637,148 @@ public class ChatClient
         }
 
         if (myServer != null) {
+            flushOutbox();
             try {
-                waitingForNameFromServer = true;
-                myServer.say("Username changed from: " + oldName + " to: " + myName);
+                // The server may give us a variant of the name if it
+                // is taken.
+                String assigned = myServer.rename(this, myName);
+                if (assigned != null) {
+                    myName = assigned;
+                }
             } catch (RemoteException e) {
                 System.out.println("[Sending to server failed]");
             }
         }
     }
 
-    protected void getNameFromServer(ChatNotification chat) {
-        if (chat.getText().startsWith("System: New chat member: " + myName) || chat.getText().startsWith("Username changed from: ")) {
-            waitingForNameFromServer = false;
-            String[] substring = chat.getText().split(": ");
-            myName = substring[2];
-            if (substring.length > 3){
-                for (int i = 3; i < substring.length; i++) {
-                    myName += ": " + substring[i];
-                }
-            }
-        }
-    }
-
     /**
      * This method implements the send command which is implicit in the
      * command interpreter (the input line does not start with a period).
+     * The text is queued for the sender thread, so this does not wait
+     * for the server.
      *
      * @param text The text to send to the currently connected server.
+     * @return Completes with the sequence number of the message in our
+     *         room once the server has it, or fails if it could not be
+     *         sent.
      */
-    protected void sendToChat(String text) {
+    protected CompletableFuture<Long> sendToChat(String text) {
+        OutgoingMessage msg = new OutgoingMessage(text);
         if (myServer != null) {
-            try {
-                myServer.say(text);
-            } catch (RemoteException rex) {
-                System.out.println("[Sending to server failed]");
-            }
+            outbox.add(msg);
         } else {
             System.out.println("[Cannot send chat text: not connected to a server]");
+            msg.sent.completeExceptionally(new IllegalStateException("Not connected"));
+        }
+        return msg.sent;
+    }
+
+    /**
+     * The body of the sender thread. Sends the queued messages to the
+     * current server, as many as have queued up in one call, and
+     * completes their futures. If the server says we are sending too
+     * fast, the messages it did not take are sent again when it says
+     * we may.
+     */
+    protected void sendLoop() {
+        ArrayList<OutgoingMessage> batch = new ArrayList<>();
+        boolean heldBack = false;
+        while (true) {
+            try {
+                batch.add(outbox.take());
+            } catch (InterruptedException iex) {
+                return;
+            }
+            outbox.drainTo(batch, MAX_PIPELINE - 1);
+
+            ChatServerInterface server = myServer;
+            int from = 0;
+            while (from < batch.size()) {
+                String[] texts = new String[batch.size() - from];
+                for (int i = 0; i < texts.length; i++)
+                    texts[i] = batch.get(from + i).text;
+                try {
+                    if (server == null || server != myServer)
+                        throw new RemoteException("Not connected");
+                    long[] seqs = server.sayAll(this, texts);
+                    for (int i = 0; i < texts.length && seqs[i] >= 0; i++)
+                        batch.get(from++).sent.complete(seqs[i]);
+                } catch (RemoteException rex) {
+                    RateLimitedException rle = rateLimited(rex);
+                    if (rle != null) {
+                        if (!heldBack) {
+                            System.out.println("[Sending too fast, the server is holding us back]");
+                            heldBack = true;
+                        }
+                        try {
+                            Thread.sleep(rle.getRetryAfterMillis());
+                        } catch (InterruptedException iex) {
+                            return;
+                        }
+                        continue;
+                    }
+                    System.out.println("[Sending to server failed]");
+                    for (int i = from; i < batch.size(); i++)
+                        batch.get(i).sent.completeExceptionally(rex);
+                    break;
+                }
+            }
+            batch.clear();
+            if (outbox.isEmpty())
+                heldBack = false;
+        }
+    }
+
+    /**
+     * Finds out whether a call failed because we sent too fast. RMI
+     * hands us the server's RateLimitedException inside a
+     * ServerException; the NIO transport as it is.
+     *
+     * @param rex What the call threw.
+     * @return The RateLimitedException, or null if it was not that.
+     */
+    protected static RateLimitedException rateLimited(RemoteException rex) {
+        for (Throwable t = rex; t != null; t = t.getCause()) {
+            if (t instanceof RateLimitedException)
+                return (RateLimitedException) t;
+        }
+        return null;
+    }
+
+    /**
+     * Waits a while for the messages typed so far to be sent, so that
+     * disconnecting does not lose them, and a rename or a change of
+     * room does not overtake them. A null message is sent as a marker;
+     * the server ignores it.
+     */
+    protected void flushOutbox() {
+        OutgoingMessage marker = new OutgoingMessage(null);
+        outbox.add(marker);
+        try {
+            marker.sent.get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            // Sending failed or takes too long; give up on it.
         }
     }
 
+    /**
+     * This method implements the '.transport' user command. The choice
+     * takes effect on the next connect.
+     *
+     * @param transport "rmi" or "nio"; empty to show the current choice.
+     */
+    protected void setTransport(String transport) {
+        if (transport.equalsIgnoreCase("nio")) {
+            useNio = true;
+        } else if (transport.equalsIgnoreCase("rmi")) {
+            useNio = false;
+        } else if (!transport.isEmpty()) {
+            System.out.println("[Unknown transport: " + transport + "]");
+            return;
+        }
+        System.out.println("[Transport: " + (useNio ? "nio" : "rmi") + "]");
+    }
+
     /**
      * This method implements the '.list' user command.  All known chat
      * servers are listed and a call attempt is made with each.
@@ -316,7 +803,7 @@ public class ChatClient
                         // How can we detect which one we are connected to?
                         try {
                             String s = csi.getName();
-                            System.out.printf("%s OK]\n", s);
+                            System.out.printf("%s OK, %d clients]\n", s, csi.getLoad());
                         } catch (Exception e) {
                             System.out.printf(" - server not responding: %s]\n",
                                     e.toString());
@@ -343,10 +830,16 @@ public class ChatClient
             ".disconnect        Break the connection to the server",
             ".quit              Exit the client",
             ".help              This text",
-            ".users             Lists all current members of the chat and if they're blocked.",
+            ".users             Lists all current members of the room and if they're blocked.",
+            ".join <room>       Move to another room, which is created if needed",
+            ".leave             Leave the room and return to the lobby",
+            ".rooms             Lists the rooms on the server",
+            ".transport nio|rmi Stream from the server (default) or take RMI callbacks",
             ".myname            Prints your name in the chat",
             ".block <name>      Blocks the user with this name",
             ".unblock <name>    Unblocks this user if he was blocked before",
+            ".stats             Shows how long messages took to get here",
+            ".presence [on|off] Shows who is away, or starts/stops following it",
     };
 
     protected void readLoop() {
@@ -364,10 +857,10 @@ public class ChatClient
             System.out.print("Client> ");
             System.out.flush();
             String buf = null;
-            runTimer();
 
             try {
                 buf = d.readLine();
+                lastActivity = System.nanoTime();
             } catch (IOException iox) {
                 iox.printStackTrace();
                 System.out.println("\n[I/O error in command interface]");
@@ -414,8 +907,7 @@ public class ChatClient
                     showHelp(argv);
                 } else if ("users".startsWith(verb)) {
                     if (myServer != null) {
-                        requestUsers = true;
-                        sendToChat(arg);
+                        listUsers();
                     } else {
                         System.out.println("Please connect to a server before using this command.");
                     }
@@ -425,6 +917,18 @@ public class ChatClient
                     blockUser(stringJoin(argv, 1, " "));
                 } else if ("unblock".startsWith(verb)){
                     unblockUser(stringJoin(argv, 1, " "));
+                } else if ("join".startsWith(verb)) {
+                    joinRoom(stringJoin(argv, 1, " "));
+                } else if ("leave".startsWith(verb)) {
+                    joinRoom(ChatServerInterface.LOBBY);
+                } else if ("rooms".startsWith(verb)) {
+                    listRooms();
+                } else if ("transport".startsWith(verb)) {
+                    setTransport(stringJoin(argv, 1, " "));
+                } else if ("stats".startsWith(verb)) {
+                    System.out.println("[" + latency + "]");
+                } else if ("presence".startsWith(verb)) {
+                    showPresence(stringJoin(argv, 1, " "));
                 } else {
                     System.out.println("[" + verb + ": unknown command]");
                 }
@@ -442,10 +946,19 @@ public class ChatClient
 
     }
 
+    /**
+     * This method implements the '.block' user command. The server is
+     * asked to stop sending the user's messages. Users it cannot block,
+     * such as those on another server of the cluster, are still
+     * filtered out here by name.
+     *
+     * @param user The name of the user to block.
+     */
     protected void blockUser(String user){
         boolean added = blockedUsers.add(user.trim());
         if (added) {
             System.out.println(user + " is now blocked");
+            blockOnServer(myServer, user.trim(), true);
         }
     }
 
@@ -453,89 +966,485 @@ public class ChatClient
         boolean removed = blockedUsers.remove(user.trim());
         if (removed){
             System.out.println(user + " is not blocked anymore");
+            blockOnServer(myServer, user.trim(), false);
         }
     }
 
+    /**
+     * Asks a server to block or unblock a user for us. Failures are
+     * ignored, since blocked users are filtered out here as well.
+     *
+     * @param server The server, or null if we are not connected.
+     * @param user   The name of the user.
+     * @param block  True to block, false to unblock.
+     */
+    protected void blockOnServer(ChatServerInterface server, String user, boolean block) {
+        if (server == null)
+            return;
+        try {
+            if (block)
+                server.block(this, user);
+            else
+                server.unblock(this, user);
+        } catch (RemoteException rex) {
+            // Filtered here instead.
+        }
+    }
+
+    /**
+     * Blocks the users we have blocked on a server we just registered
+     * with, since a new registration starts out blocking no one.
+     *
+     * @param server The server.
+     */
+    protected void restoreBlocks(ChatServerInterface server) {
+        for (String user : blockedUsers)
+            blockOnServer(server, user, true);
+    }
+
 
     /**
      * The ChatServer we are registered with (connected to) calls this
-     * method to notify us of a new chat message.
+     * method to notify us of new chat messages. A ChatBatchNotification
+     * is unpacked and its messages handled in sequence order.
      *
      * @param rev The remote event that is the notification.
      */
     public void notify(RemoteEvent rev) throws RemoteException {
-        if (rev instanceof ChatNotification) {
-            ChatNotification chat = (ChatNotification) rev;
-            if (waitingForNameFromServer){
-                getNameFromServer(chat);
-            }
-            if (!listUsers(chat)){
-                rename(chat);
-                if (!isBlocked(chat)) {
-                    System.out.println(chat.getSequenceNumber() + " : " + chat.getText());
+        enqueue(rev);
+    }
+
+    /**
+     * Puts something in the inbox, waiting while it is full.
+     *
+     * @param item A notification or a RoomChange.
+     */
+    protected void enqueue(Object item) {
+        try {
+            inbox.put(item);
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The body of the render thread. Takes whatever has arrived in the
+     * inbox, puts the messages of our room in sequence order, and
+     * writes them to the console in one go.
+     */
+    protected void renderLoop() {
+        ArrayList<Object> items = new ArrayList<>();
+        StringBuilder out = new StringBuilder();
+        while (true) {
+            try {
+                Object item = early.isEmpty()
+                        ? inbox.take()
+                        : inbox.poll(GAP_MILLIS, TimeUnit.MILLISECONDS);
+                if (item != null)
+                    items.add(item);
+            } catch (InterruptedException iex) {
+                return;
+            }
+            inbox.drainTo(items);
+
+            long now = ChatNotification.currentTimeNanos();
+            for (Object item : items) {
+                if (item instanceof RoomChange) {
+                    changeRoom((RoomChange) item, out);
+                } else if (item instanceof PresenceEvent) {
+                    takePresence((PresenceEvent) item, out);
+                } else if (item instanceof ChatBatchNotification) {
+                    ChatBatchNotification batch = (ChatBatchNotification) item;
+                    if (batch.getID() == renderRoomId)
+                        for (int i = 0; i < batch.size(); i++) {
+                            ChatNotification chat = batch.getNotification(i);
+                            if (chat != null)
+                                latency.record(now - chat.getTimestamp());
+                            accept(batch.getSequenceNumber() + i, chat, out);
+                        }
+                } else if (item instanceof ChatNotification) {
+                    ChatNotification chat = (ChatNotification) item;
+                    if (chat.getID() == renderRoomId) {
+                        latency.record(now - chat.getTimestamp());
+                        accept(chat, out);
+                    }
                 }
             }
+            items.clear();
+
+            if (!early.isEmpty()
+                    && System.nanoTime() - gapSince >= GAP_MILLIS * 1000000)
+                fillGap(out);
+
+            if (out.length() > 0) {
+                System.out.print(out);
+                System.out.flush();
+                out.setLength(0);
+            }
         }
     }
 
-    protected void rename(ChatNotification chat){
-        boolean renamed = chat.getText().startsWith("Username changed from: ");
-        if (renamed){
-            String[] splitted = chat.getText().split(": ");
-            String oldName = splitted[1].substring(0, splitted[1].length() - 3);
-            String newName = splitted[2];
-            if (isBlocked(oldName)){
-                blockedUsers.remove(oldName);
-                blockedUsers.add(newName);
-                System.out.println("A blocked user changed his username, changed blocked user from " + oldName + " to " + newName);
+    /**
+     * Switches the render thread to another room, and fetches what was
+     * said there that we have not seen.
+     *
+     * @param change The room we are in now.
+     * @param out    Where to write.
+     */
+    protected void changeRoom(RoomChange change, StringBuilder out) {
+        early.clear();
+        if (change.server != renderServer) {
+            presence.clear();
+            presenceSerial = 0;
+        }
+        renderServer = change.server;
+        renderRoom = change.room;
+        renderRoomId = change.roomId;
+        if (renderServer == null)
+            return;
+
+        String stream = change.serverName + "/" + change.room;
+        if (!stream.equals(lastStream)) {
+            lastStream = stream;
+            lastSeq = 0;
+        }
+
+        try {
+            ChatBatchNotification missed = renderServer.getHistory(renderRoom, lastSeq);
+            if (missed != null) {
+                out.append("[Catching up on ").append(missed.size())
+                        .append(" earlier messages]\n");
+                for (int i = 0; i < missed.size(); i++)
+                    accept(missed.getNotification(i), out);
             }
+        } catch (RemoteException rex) {
+            out.append("[Unable to fetch missed messages]\n");
+        }
+    }
+
+    /**
+     * Takes one message of our room. It is shown if it is the next one;
+     * if it is further ahead, it waits in early for the ones before it.
+     *
+     * @param chat The message.
+     * @param out  Where to write.
+     */
+    protected void accept(ChatNotification chat, StringBuilder out) {
+        accept(chat.getSequenceNumber(), chat, out);
+    }
+
+    /**
+     * Takes one message of our room, which may be one that the server
+     * left out because we blocked its sender. That one is not shown,
+     * but is still needed to keep the messages in sequence.
+     *
+     * @param seq  The sequence number of the message.
+     * @param chat The message, or null if it was left out.
+     * @param out  Where to write.
+     */
+    protected void accept(long seq, ChatNotification chat, StringBuilder out) {
+        if (seq <= lastSeq)
+            return;
+        if (seq > lastSeq + 1 && lastSeq != 0) {
+            if (early.isEmpty())
+                gapSince = System.nanoTime();
+            early.put(seq, chat);
+            return;
+        }
+        render(seq, chat, out);
+        while (!early.isEmpty() && early.firstKey() <= lastSeq + 1) {
+            Map.Entry<Long, ChatNotification> next = early.pollFirstEntry();
+            if (next.getKey() > lastSeq)
+                render(next.getKey(), next.getValue(), out);
         }
+        gapSince = System.nanoTime();
     }
 
-    protected boolean listUsers(ChatNotification chat){
-        if (chat.getText().startsWith(".users\nCurrent users: ")){
-            if (!requestUsers){
-                return true;
+    /**
+     * Asks the server for the messages that have been missing for too
+     * long. Any it no longer has are reported and skipped.
+     *
+     * @param out Where to write.
+     */
+    protected void fillGap(StringBuilder out) {
+        try {
+            ChatBatchNotification missed = renderServer.getHistory(renderRoom, lastSeq);
+            if (missed != null)
+                for (int i = 0; i < missed.size() && !early.isEmpty(); i++)
+                    accept(missed.getNotification(i), out);
+        } catch (RemoteException rex) {
+            // Skip them below.
+        }
+        if (!early.isEmpty()) {
+            long first = early.firstKey();
+            if (first == lastSeq + 2)
+                out.append("[Missed message ").append(lastSeq + 1).append("]\n");
+            else
+                out.append("[Missed messages ").append(lastSeq + 1)
+                        .append(" to ").append(first - 1).append("]\n");
+            lastSeq = first - 1;
+            Map.Entry<Long, ChatNotification> next = early.pollFirstEntry();
+            accept(next.getKey(), next.getValue(), out);
+        }
+    }
+
+    /**
+     * Shows one message, unless it is from a blocked user, and follows
+     * renames. A blocked user who comes back, or takes a blocked name,
+     * is blocked on the server again. A message whose text cannot be
+     * read is reported in its place, so that one corrupt message does
+     * not stop the render thread.
+     *
+     * @param seq  The sequence number of the message, the one after
+     *             lastSeq.
+     * @param chat The message, or null if the server left it out.
+     * @param out  Where to write.
+     */
+    protected void render(long seq, ChatNotification chat, StringBuilder out) {
+        lastSeq = seq;
+        if (chat == null)
+            return;
+
+        if (chat instanceof MemberEvent) {
+            MemberEvent member = (MemberEvent) chat;
+            if (member.getKind() == MemberEvent.RENAMED) {
+                rename(member.getOldName(), member.getName(), out);
             }
-            String[] users = chat.getText().split("\n");
-            users = Arrays.copyOfRange(users, 2, users.length);
+            if ((member.getKind() == MemberEvent.JOINED
+                    || member.getKind() == MemberEvent.RENAMED)
+                    && isBlocked(member.getName())) {
+                blockOnServer(renderServer, member.getName(), true);
+            }
+        }
+        try {
+            if (!isBlocked(chat)) {
+                String text = chat.getText();
+                out.append(chat.getSequenceNumber()).append(" : ")
+                        .append(text).append('\n');
+            }
+        } catch (IllegalStateException ise) {
+            // A compressed text that cannot be inflated; the render
+            // thread goes on with the next message.
+            out.append("[Message ").append(seq)
+                    .append(" could not be read: ").append(ise.getMessage())
+                    .append("]\n");
+        }
+    }
+
+    /**
+     * Takes what the server tells us of who is away into the presence
+     * table, and shows who went away or came back. The presence of
+     * every client, which the server sends when we start following,
+     * can arrive after a change it already holds; it then only fills
+     * in the clients we know nothing of.
+     *
+     * @param event The presence of the clients that changed, or of all.
+     * @param out   Where to write.
+     */
+    protected void takePresence(PresenceEvent event, StringBuilder out) {
+        if (!watchingPresence)
+            return;
+        boolean stale = event.getSequenceNumber() < presenceSerial;
+        presenceSerial = Math.max(presenceSerial, event.getSequenceNumber());
+        for (int i = 0; i < event.size(); i++) {
+            String user = event.getName(i);
+            int state = event.getState(i);
+            Integer was = stale ? presence.putIfAbsent(user, state)
+                                : presence.put(user, state);
+            if (stale || user.equals(myName))
+                continue;
+            if (state == PresenceEvent.AWAY
+                    && (was == null || was != PresenceEvent.AWAY))
+                out.append('[').append(user).append(" is away]\n");
+            else if (state == PresenceEvent.ACTIVE
+                    && was != null && was == PresenceEvent.AWAY)
+                out.append('[').append(user).append(" is back]\n");
+        }
+    }
+
+    /**
+     * Follows a name change of another client, so that a blocked user
+     * stays blocked under the new name.
+     *
+     * @param oldName The name the client had.
+     * @param newName The name the client has now.
+     * @param out     Where to write.
+     */
+    protected void rename(String oldName, String newName, StringBuilder out){
+        if (oldName != null && isBlocked(oldName)){
+            blockedUsers.remove(oldName);
+            blockedUsers.add(newName);
+            out.append("A blocked user changed his username, changed blocked user from ")
+                    .append(oldName).append(" to ").append(newName).append('\n');
+        }
+    }
+
+    /**
+     * This method implements the '.users' user command. It asks the
+     * server for the names of the current members and lists them,
+     * marking those that are blocked.
+     */
+    protected void listUsers(){
+        try {
+            String[] users = myServer.listUsers(myRoom);
             System.out.println("Current users: ");
             for (String user: users){
-                if (blockedUsers.contains(user.trim())){
+                if (blockedUsers.contains(user)){
                     System.out.println(user + " (blocked)");
                 } else {
                     System.out.println(user);
                 }
             }
-            return true;
-        } else {
-            return false;
+        } catch (RemoteException e) {
+            System.out.println("[Unable to list users]");
         }
     }
 
-    protected void runTimer() {
-        if (isRunning) {
-            // If the timer is already running, cancel the current task
-            task.cancel();
+    /**
+     * This method implements the '.join' and '.leave' user commands. It
+     * moves us to another room and shows what was said there recently.
+     * The render thread switches rooms where catchUp() puts the change
+     * in the inbox, so notifications from the old room that are still
+     * on their way are dropped there.
+     *
+     * @param room The name of the room to join.
+     */
+    protected void joinRoom(String room) {
+        if (myServer == null) {
+            System.out.println("Please connect to a server before using this command.");
+            return;
+        }
+        if (room == null || room.isEmpty()) {
+            System.out.println("[You are in room " + myRoom + "]");
+            return;
         }
 
-        // Schedule a new task
-        task = new TimerTask() {
-            @Override
-            public void run() {
-
-                if (myServer != null) {
-                    sendToChat(myName + " is now AFK.");
-                } else {
-                    System.out.println("Timer expired after " + timeOut + " seconds. Changing status to AFK.");
+        flushOutbox();
+        try {
+            synchronized (this) {
+                long id = myServer.join(this, room);
+                if (id < 0) {
+                    System.out.println("[Cannot join room " + room + "]");
+                    return;
+                }
+                if (id == myRoomId) {
+                    return;
                 }
-                isRunning = false; // Reset the running flag
+                myRoom = room;
+                myRoomId = id;
+                System.out.println("[Joined room " + room + "]");
+                catchUp(myServer.getName());
             }
-        };
+        } catch (RemoteException rex) {
+            System.out.println("[Unable to join room " + room + "]");
+        }
+    }
+
+    /**
+     * This method implements the '.rooms' user command.
+     */
+    protected void listRooms() {
+        if (myServer == null) {
+            System.out.println("Please connect to a server before using this command.");
+            return;
+        }
+        try {
+            System.out.println("Rooms: ");
+            for (String room : myServer.listRooms()) {
+                System.out.println(room.equals(myRoom) ? room + " (here)" : room);
+            }
+        } catch (RemoteException rex) {
+            System.out.println("[Unable to list rooms]");
+        }
+    }
+
+    /**
+     * Tells the server when the user has gone away from the keyboard,
+     * that is, typed nothing for timeOut seconds, or come back. Called
+     * by the timer thread every PRESENCE_CHECK_MILLIS, so the input
+     * loop does no more than note the time of each line, and the server
+     * only hears of a change. A failed call is made again on the next
+     * check.
+     */
+    protected void checkPresence() {
+        ChatServerInterface server = myServer;
+        if (server == null)
+            return;
+        boolean idle = System.nanoTime() - lastActivity > timeOut * 1000000000L;
+        if (idle == away)
+            return;
+        try {
+            if (server.setPresence(this,
+                    idle ? PresenceEvent.AWAY : PresenceEvent.ACTIVE)) {
+                away = idle;
+                if (idle)
+                    System.out.println("[No input for " + timeOut
+                            + " seconds, you are now marked as away]");
+            }
+        } catch (RemoteException rex) {
+            // Try again on the next check.
+        }
+    }
+
+    /**
+     * Has a server we just registered with send us presence again, if
+     * we were following it, since a new registration starts out active
+     * and not watching. The timer thread marks us away again on its
+     * next check if we are.
+     *
+     * @param server The server.
+     */
+    protected void restorePresence(ChatServerInterface server) {
+        away = false;
+        if (!watchingPresence)
+            return;
+        presence.clear();
+        try {
+            PresenceEvent all = server.watchPresence(this, true);
+            if (all != null)
+                enqueue(all);
+        } catch (RemoteException rex) {
+            System.out.println("[Unable to follow presence]");
+        }
+    }
 
-        // Schedule the task with the specified timeout
-        timer.schedule(task, timeOut * 1000); // Convert seconds to milliseconds
-        isRunning = true;
+    /**
+     * This method implements the '.presence' user command. With 'on' or
+     * 'off' it starts or stops having the server send us who is away;
+     * without, it lists those the server has told us about.
+     *
+     * @param arg "on", "off" or the empty string.
+     */
+    protected void showPresence(String arg) {
+        ChatServerInterface server = myServer;
+        if (arg.equalsIgnoreCase("on") || arg.equalsIgnoreCase("off")) {
+            watchingPresence = arg.equalsIgnoreCase("on");
+            if (!watchingPresence)
+                presence.clear();
+            if (server == null)
+                return;
+            try {
+                PresenceEvent all = server.watchPresence(this, watchingPresence);
+                if (all != null) {
+                    System.out.println("[Following the presence of "
+                            + all.size() + " users]");
+                    enqueue(all);
+                }
+            } catch (RemoteException rex) {
+                System.out.println("[Unable to follow presence]");
+            }
+        } else if (arg.length() > 0) {
+            System.out.println("[Usage: .presence [on|off]]");
+        } else if (!watchingPresence) {
+            System.out.println("[Not following presence, try .presence on]");
+        } else {
+            System.out.println("Presence: ");
+            for (String user : new TreeSet<>(presence.keySet())) {
+                int state = presence.get(user);
+                if (state != PresenceEvent.OFFLINE)
+                    System.out.println(user + " (" + PresenceEvent.describe(state) + ")");
+            }
+        }
     }
 
     /**
@@ -587,8 +1496,23 @@ public class ChatClient
         return blockedUsers.contains(user.trim());
     }
 
+    /**
+     * Tells whether a message was written by a blocked user. Only
+     * messages said by clients can be blocked. The sender name comes
+     * with the message; for a message without it, such as one reloaded
+     * from the server's log, the text before its first ": " is used.
+     */
     protected boolean isBlocked(ChatNotification chat){
-        return isBlocked(chat.getText().split(": ")[0]);
+        if (blockedUsers.isEmpty() || chat.getType() != ChatNotification.CHAT) {
+            return false;
+        }
+        String sender = chat.getSenderName();
+        if (sender != null) {
+            return isBlocked(sender);
+        }
+        String text = chat.getText();
+        int end = text.indexOf(": ");
+        return isBlocked((end < 0) ? text : text.substring(0, end));
     }
 
 
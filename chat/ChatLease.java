@@ -0,0 +1,51 @@
+// ChatLease.java
+// 2026-10-18 First version
+
+/**
+ * This class is what a ChatServer returns to a client that registers.
+ * The registration is only kept for the duration of the lease, so the
+ * client has to call renew () on the server well before it runs out. A
+ * client that dies stops renewing, and the server removes it when the
+ * lease expires.
+ */
+public class ChatLease implements java.io.Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The name the client was given.
+   */
+  protected final String name;
+
+  /**
+   * How long the registration lasts without renewal, in milliseconds.
+   */
+  protected final long duration;
+
+  /**
+   * Creates a new ChatLease instance.
+   * @param name     The name the client was given.
+   * @param duration The lease duration in milliseconds.
+   */
+  public ChatLease (String name, long duration) {
+    this.name = name;
+    this.duration = duration;
+  }
+
+  /**
+   * Returns the name the client was given when it registered.
+   * @return The client's name in the chat.
+   */
+  public String getName () {
+    return name;
+  }
+
+  /**
+   * Returns the lease duration. The lease is measured by the server's
+   * clock from the time it was granted or last renewed.
+   * @return The duration in milliseconds.
+   */
+  public long getDuration () {
+    return duration;
+  }
+}
@@ -9,15 +9,162 @@
  * can obtain the serial number by calling method getSequenceNumber ()
  * (defined in the superclass RemoteEvent) and the message text by calling
  * method getText () defined below.
+ *
+ * Besides the text, a notification tells who said it (getSenderId ()
+ * and getSenderName ()), what kind of message it is (getType ()) and
+ * when the server received it (getTimestamp ()), so that a client can
+ * act on these without parsing the text. They are sent as a few bytes:
+ * numbers are written in as few bytes as they need, and the sender
+ * name is sent as the length of the text it starts, not a second time.
+ *
+ * A long text, such as a pasted log or piece of code, can be sent
+ * deflated (see compress ()). The server compresses it once for all
+ * the clients, and a client only inflates it when it asks for the text.
  */
 public class ChatNotification extends RemoteEvent
 {
+  /**
+   * The types of message: said by a client, a notice from the server,
+   * or a change of membership (a MemberEvent).
+   */
+  public static final int CHAT = 0;
+  public static final int SYSTEM = 1;
+  public static final int MEMBER = 2;
+
+  /**
+   * Added to the type on the wire when the text is sent compressed.
+   */
+  protected static final int COMPRESSED = 0x40;
+
+  /**
+   * Added to the type on the wire when a message id follows.
+   */
+  protected static final int HAS_MESSAGE_ID = 0x20;
+
+  /**
+   * The preset dictionary for compress (). Deflate finds repeats within
+   * the text, which a short message has few of; with the dictionary it
+   * also finds the words and punctuation that chat, pasted code and
+   * logs have in common. The end of the dictionary is cheapest to refer
+   * to, so the most common strings come last. Both ends must use the
+   * same dictionary, so it can only be changed with the wire format.
+   */
+  protected static final byte [] DICTIONARY = encodeText (
+    "<?xml version=\"1.0\" encoding=\"UTF-8\"?><html><head></head><body>"
+    + "<div class=\"\"></div></body></html>https://www.http://localhost:"
+    + "SELECT * FROM WHERE ORDER BY GROUP BY INSERT INTO VALUES UPDATE SET "
+    + "Traceback (most recent call last):  File \"\", line , in "
+    + "Exception in thread \"main\" java.lang.NullPointerException"
+    + "\tat java.base/java.lang.Thread.run(Thread.java:)\n\tat "
+    + "Caused by: java.io.IOException: ... more\n"
+    + "ERROR WARN INFO DEBUG TRACE [main] 2026-10-18T00:00:00.000Z "
+    + "#include <stdio.h>\nint main(int argc, char *argv[])\n{\n"
+    + "def __init__(self, ):\n        self.return None\nimport from "
+    + "function(const let var => console.log(undefined, null));\n"
+    + "package import java.util.List;\nimport java.util.Map;\n"
+    + "public class extends implements interface abstract final static "
+    + "private protected void int long boolean String new this "
+    + "throws throw try {\n} catch (Exception e) {\n} finally {\n"
+    + "if (  != null) {\n} else {\n for (int i = 0; i < ; i++) {\n"
+    + "while (true) {\n    return ;\n    }\n}\n\n"
+    + "    /**\n     * @param  @return \n     */\n    // "
+    + "the be to of and a in that have I it for not on with he as you "
+    + "do at this but his by from they we say her she or an will my one "
+    + "all would there their what so up out if about who get which go "
+    + "me when make can like time no just him know take people into "
+    + "year your good some could them see other than then now look only "
+    + "come its over think also back after use two how our work first "
+    + "well way even new want because any these give day most us is are "
+    + "was were been has had does did should thanks please sorry yes ok "
+    + "what's don't I'm it's that's can't didn't doesn't isn't I'll "
+    + "The This That What How Why When Where Is Are Can Do "
+    + "error: warning: failed at line \"\": \"\", \"\"], [{\"id\": "
+    + "\"name\": \"type\": \"value\": true, false, null}\n    ");
+
+  /**
+   * A Deflater and an Inflater per thread, with a buffer to compress
+   * into. Creating them allocates the zlib state, which takes far longer
+   * than compressing a message, so each thread resets and reuses its
+   * own.
+   */
+  private static final ThreadLocal<Codec> CODEC = new ThreadLocal<Codec> () {
+    protected Codec initialValue () {
+      return new Codec ();
+    }
+  };
+
+  /**
+   * A StringBuilder per thread for making the text of notices from the
+   * server (see textBuilder ()).
+   */
+  private static final ThreadLocal<StringBuilder> BUILDER =
+    new ThreadLocal<StringBuilder> () {
+      protected StringBuilder initialValue () {
+	return new StringBuilder (128);
+      }
+    };
+
+  /**
+   * currentTimeNanos () minus System.nanoTime (). Taken right after the
+   * millisecond clock ticks, so that it is close to the microsecond.
+   */
+  protected static final long CLOCK_BASE = clockBase ();
 
   /**
-   * The text of the message.
+   * The text of the message. Null while a compressed text has not been
+   * inflated yet (see getText ()).
    */
   protected String text;
 
+  /**
+   * The id the server gave the client that said the message, or 0 for
+   * a message from the server itself, such as a MemberEvent. Ids are
+   * unique within a cluster, and a client keeps its id when it changes
+   * its name, so a server can filter on it (see ChatServer.block ()).
+   */
+  protected long senderId;
+
+  /**
+   * The length of the sender's name at the start of the text, which
+   * reads "name: message", or 0 if the text does not start with it.
+   */
+  protected int senderNameLength;
+
+  /**
+   * The id the server that received the message gave it before it
+   * submitted it to the sequencer of its cluster, or 0. Ids are unique
+   * within a cluster, so a message that is submitted again, or relayed
+   * twice, is recognized as the same message (see ChatRoom).
+   */
+  protected long messageId;
+
+  /**
+   * The type of the message: CHAT, SYSTEM or MEMBER.
+   */
+  protected int type = CHAT;
+
+  /**
+   * When the message was made, which for a message from a client is
+   * when the server received it, in nanoseconds since the epoch (see
+   * currentTimeNanos ()).
+   */
+  protected long timestamp;
+
+  /**
+   * The text encoded as UTF-8, made once by encode () and reused each
+   * time the same notification is sent to another client. When it is
+   * null, the text is encoded again on every send.
+   */
+  protected transient volatile byte [] encodedText;
+
+  /**
+   * The text as it is sent when it is compressed, made once by compress ()
+   * or read as it arrived: the length of the UTF-8 text as written by
+   * writeVarLong (), followed by the deflated text. Null if the text is
+   * sent as it is.
+   */
+  protected transient volatile byte [] compressedText;
+
   /**
    * Creates a new ChatNotification instance.
    * @param source The object from which this instance originates.
@@ -34,13 +181,402 @@ public class ChatNotification extends RemoteEvent
 	   serial,		// sequence number
 	   null);		// handback
     this.text = msg;
+    this.timestamp = currentTimeNanos ();
+  }
+
+  /**
+   * Creates an empty ChatNotification, to be filled in by readExternal ().
+   */
+  public ChatNotification () {
   }
 
   /**
-   * Returns the text message in the notification.
+   * Returns the text message in the notification. A text that arrived
+   * compressed is inflated by the first call, so a message that is never
+   * shown is never inflated.
    * @return The text message.
    */
   public String getText () {
-    return text;
+    String s = text;
+    if (s == null) {
+      byte [] z = compressedText;
+      if (z != null)
+	text = s = decodeText (inflate (z));
+    }
+    return s;
+  }
+
+  /**
+   * Returns the id of the client that said the message.
+   * @return The sender id, or 0 for a message from the server.
+   */
+  public long getSenderId () {
+    return senderId;
+  }
+
+  /**
+   * Returns the id the message was submitted to the sequencer under.
+   * @return The message id, or 0 if it was numbered where it was said.
+   */
+  public long getMessageId () {
+    return messageId;
+  }
+
+  /**
+   * Returns the name of the client that said the message, as it was
+   * when the message was said.
+   * @return The sender name, or null if the message is not from a
+   *         client or its text does not start with the name.
+   */
+  public String getSenderName () {
+    String s = (senderNameLength > 0) ? getText () : null;
+    return (s != null) ? s.substring (0, senderNameLength) : null;
+  }
+
+  /**
+   * Returns the type of the message.
+   * @return CHAT, SYSTEM or MEMBER.
+   */
+  public int getType () {
+    return type;
+  }
+
+  /**
+   * Returns when the message was made; for a message from a client,
+   * when the server received it. Subtracting it from currentTimeNanos ()
+   * gives the latency of the message, if the clocks of the two hosts
+   * agree.
+   * @return The time in nanoseconds since the epoch.
+   */
+  public long getTimestamp () {
+    return timestamp;
+  }
+
+  /**
+   * Returns the current time in nanoseconds since the epoch. It moves
+   * with System.nanoTime (), so it has the same resolution, and two
+   * JVMs on the same host agree on it to within a few microseconds.
+   * @return The time in nanoseconds since the epoch.
+   */
+  public static long currentTimeNanos () {
+    return CLOCK_BASE + System.nanoTime ();
+  }
+
+  /**
+   * Computes CLOCK_BASE, waiting for the millisecond clock to tick.
+   */
+  private static long clockBase () {
+    long start = System.currentTimeMillis ();
+    long millis;
+    while ((millis = System.currentTimeMillis ()) == start)
+      ;
+    return millis * 1000000L - System.nanoTime ();
+  }
+
+  /**
+   * Encodes the text of this notification once, so that every later
+   * send copies the same immutable bytes instead of encoding it again.
+   */
+  public void encode () {
+    if (encodedText == null && compressedText == null)
+      encodedText = encodeText (text);
+  }
+
+  /**
+   * Like encode (), but a text of at least minLength bytes is deflated,
+   * and the compressed bytes are sent instead if they are smaller. The
+   * UTF-8 bytes are then let go, as nothing sends them.
+   * @param minLength The length in bytes from which to compress.
+   */
+  public void compress (int minLength) {
+    encode ();
+    byte [] b = encodedText;
+    if (b == null || b.length < minLength)
+      return;
+    byte [] z = deflate (b);
+    if (z != null) {
+      compressedText = z;
+      encodedText = null;
+    }
+  }
+
+  /**
+   * Tells if the text is sent compressed.
+   * @return True if compress () compressed the text, or it arrived
+   *         compressed.
+   */
+  public boolean isCompressed () {
+    return compressedText != null;
+  }
+
+  /**
+   * Returns the text encoded as UTF-8: the bytes made by encode (), or
+   * a fresh encoding if encode () has not been called or the text was
+   * compressed.
+   * @return The encoded text, or null if the text is null.
+   */
+  public byte [] getEncodedText () {
+    byte [] b = encodedText;
+    return (b != null) ? b : encodeText (getText ());
+  }
+
+  /**
+   * Returns the text as it is sent when it is not compressed.
+   * @return The encoded text, or null to send no text.
+   */
+  protected byte [] getWireText () {
+    return getEncodedText ();
+  }
+
+  /**
+   * Returns the calling thread's StringBuilder, emptied, for making the
+   * text of a notice from the server. Reusing it leaves toString () as
+   * the only copy, where a new builder would also grow and copy its
+   * buffer as the text is appended. The builder must not be kept, and
+   * the thread must not ask for it again before it is done with it.
+   * @return The builder.
+   */
+  protected static StringBuilder textBuilder () {
+    StringBuilder sb = BUILDER.get ();
+    sb.setLength (0);
+    return sb;
+  }
+
+  public void writeExternal (java.io.ObjectOutput out)
+    throws java.io.IOException
+  {
+    byte [] z = compressedText;
+    super.writeExternal (out);
+    out.writeByte (type | ((z != null) ? COMPRESSED : 0)
+		   | ((messageId != 0) ? HAS_MESSAGE_ID : 0));
+    writeVarLong (out, senderId);
+    if (senderId != 0)
+      writeVarLong (out, senderNameLength);
+    if (messageId != 0)
+      writeVarLong (out, messageId);
+    out.writeLong (timestamp);
+    writeBytes (out, (z != null) ? z : getWireText ());
+  }
+
+  public void readExternal (java.io.ObjectInput in)
+    throws java.io.IOException, ClassNotFoundException
+  {
+    super.readExternal (in);
+    int t = in.readByte ();
+    type = t & ~(COMPRESSED | HAS_MESSAGE_ID);
+    senderId = readVarLong (in);
+    if (senderId != 0)
+      senderNameLength = (int) readVarLong (in);
+    if ((t & HAS_MESSAGE_ID) != 0)
+      messageId = readVarLong (in);
+    timestamp = in.readLong ();
+    setText (readBytes (in), (t & COMPRESSED) != 0);
+  }
+
+  /**
+   * Sets the text as read from the wire. A compressed text is kept as
+   * it is, and only inflated if getText () is called.
+   */
+  void setText (byte [] b, boolean compressed) {
+    if (compressed) {
+      text = null;
+      compressedText = b;
+    } else {
+      text = decodeText (b);
+    }
+  }
+
+  /**
+   * Encodes a message text as UTF-8. Unlike DataOutput.writeUTF (), this
+   * has no 64 KB limit.
+   * @param s The text, or null.
+   * @return The encoded text, or null.
+   */
+  protected static byte [] encodeText (String s) {
+    return (s == null) ? null : s.getBytes (java.nio.charset.StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Decodes a message text encoded by encodeText ().
+   * @param b The encoded text, or null.
+   * @return The text, or null.
+   */
+  protected static String decodeText (byte [] b) {
+    return (b == null) ? null : new String (b, java.nio.charset.StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Deflates a text with DICTIONARY.
+   * @param b The text encoded as UTF-8.
+   * @return The length of the text and the deflated text, as kept in
+   *         compressedText, or null if that is no smaller than the text.
+   */
+  protected static byte [] deflate (byte [] b) {
+    Codec c = CODEC.get ();
+    byte [] out = c.buffer;
+    if (out.length < b.length) {
+      out = new byte [b.length];
+      if (b.length <= NioTransport.FrameOutput.KEEP_BUFFER)
+	c.buffer = out;
+    }
+
+    int n = 0;
+    long v = b.length;
+    for (; (v & ~0x7fL) != 0 && n < b.length; v >>>= 7)
+      out[n++] = (byte) ((v & 0x7f) | 0x80);
+    if (n == b.length)
+      return null;
+    out[n++] = (byte) v;
+
+    java.util.zip.Deflater d = c.deflater;
+    d.reset ();
+    d.setDictionary (DICTIONARY);
+    d.setInput (b);
+    d.finish ();
+    while (!d.finished () && n < b.length)
+      n += d.deflate (out, n, b.length - n);
+    return (d.finished () && n < b.length) ? java.util.Arrays.copyOf (out, n) : null;
+  }
+
+  /**
+   * Inflates a text made by deflate (). The length comes from the wire,
+   * so a text longer than NioTransport.MAX_FRAME is refused before
+   * anything is allocated for it.
+   * @param z The length of the text and the deflated text.
+   * @return The text encoded as UTF-8.
+   * @throws IllegalStateException If z was not made by deflate ().
+   */
+  protected static byte [] inflate (byte [] z) {
+    try {
+      long n = 0;
+      int off = 0;
+      for (int shift = 0; ; shift += 7) {
+	if (off == z.length || shift > 28)
+	  throw new java.util.zip.DataFormatException ("Bad length");
+	int k = z[off++];
+	n |= (long) (k & 0x7f) << shift;
+	if ((k & 0x80) == 0)
+	  break;
+      }
+      if (n > NioTransport.MAX_FRAME)
+	throw new java.util.zip.DataFormatException ("Bad length " + n);
+      byte [] b = new byte [(int) n];
+
+      java.util.zip.Inflater f = CODEC.get ().inflater;
+      f.reset ();
+      f.setInput (z, off, z.length - off);
+      int len = 0;
+      while (len < b.length) {
+	int k = f.inflate (b, len, b.length - len);
+	if (k == 0) {
+	  if (f.needsDictionary ())
+	    f.setDictionary (DICTIONARY);
+	  else if (f.finished () || f.needsInput ())
+	    throw new java.util.zip.DataFormatException ("Text cut short");
+	}
+	len += k;
+      }
+      return b;
+    } catch (java.util.zip.DataFormatException dfe) {
+      throw new IllegalStateException ("Corrupt compressed text", dfe);
+    }
+  }
+
+  /**
+   * The Deflater and Inflater of a thread (see CODEC), and the buffer it
+   * deflates into. The buffer grows with the texts compressed, but only
+   * up to NioTransport.FrameOutput.KEEP_BUFFER; a longer text gets a
+   * buffer of its own, so that one long message does not hold on to a
+   * large buffer.
+   */
+  private static final class Codec {
+    final java.util.zip.Deflater deflater =
+      new java.util.zip.Deflater (java.util.zip.Deflater.BEST_SPEED);
+    final java.util.zip.Inflater inflater = new java.util.zip.Inflater ();
+    byte [] buffer = new byte [0];
+  }
+
+  /**
+   * Writes a length-prefixed byte array. The length is written by
+   * writeVarLong () as length + 1, so that a null array is a single 0.
+   */
+  protected static void writeBytes (java.io.DataOutput out, byte [] b)
+    throws java.io.IOException
+  {
+    if (b == null) {
+      out.writeByte (0);
+    } else {
+      writeVarLong (out, b.length + 1L);
+      out.write (b);
+    }
+  }
+
+  /**
+   * Reads a byte array written by writeBytes (). As with inflate (), an
+   * array longer than NioTransport.MAX_FRAME is refused before anything
+   * is allocated for it.
+   */
+  protected static byte [] readBytes (java.io.DataInput in)
+    throws java.io.IOException
+  {
+    long n = readVarLong (in) - 1;
+    if (n < 0)
+      return null;
+    if (n > NioTransport.MAX_FRAME)
+      throw new java.io.StreamCorruptedException ("Bad length " + n);
+    byte [] b = new byte [(int) n];
+    in.readFully (b);
+    return b;
+  }
+
+  /**
+   * Writes a non-negative long in as few bytes as it needs, seven bits
+   * to a byte, low bits first. Small values such as 0 take one byte.
+   */
+  protected static void writeVarLong (java.io.DataOutput out, long v)
+    throws java.io.IOException
+  {
+    while ((v & ~0x7fL) != 0) {
+      out.writeByte ((int) (v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    out.writeByte ((int) v);
+  }
+
+  /**
+   * Reads a long written by writeVarLong ().
+   */
+  protected static long readVarLong (java.io.DataInput in)
+    throws java.io.IOException
+  {
+    long v = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readByte ();
+      v |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+	return v;
+    }
+    throw new java.io.StreamCorruptedException ("Bad variable-length number");
+  }
+
+  /**
+   * Writes a long that may be negative, such as the difference between
+   * two times, with writeVarLong (). The sign is moved to the low bit,
+   * so that numbers close to 0 take few bytes either way.
+   */
+  protected static void writeSignedVarLong (java.io.DataOutput out, long v)
+    throws java.io.IOException
+  {
+    writeVarLong (out, (v << 1) ^ (v >> 63));
+  }
+
+  /**
+   * Reads a long written by writeSignedVarLong ().
+   */
+  protected static long readSignedVarLong (java.io.DataInput in)
+    throws java.io.IOException
+  {
+    long v = readVarLong (in);
+    return (v >>> 1) ^ -(v & 1);
   }
 }
@@ -0,0 +1,51 @@
+// ChatPeerInterface.java
+// 2026-10-18 First version
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * This interface is implemented by the ChatServer, and is used by the
+ * other ChatServers of the same cluster. The servers of a cluster
+ * share their rooms: a message said on any of them is seen by the
+ * clients of all of them.
+ *
+ * One server of the cluster, the sequencer, numbers the messages of
+ * every room. The other servers submit their messages to it, and it
+ * relays each numbered message once to every other server, which
+ * distributes it to its own clients.
+ */
+public interface ChatPeerInterface
+  extends
+    java.rmi.Remote
+{
+  /**
+   * Returns the name of the cluster the server belongs to.
+   * @return The cluster name, or null if the server runs on its own.
+   */
+  public String getClusterName ()
+    throws java.rmi.RemoteException;
+
+  /**
+   * Used by the other servers of the cluster to have a message numbered
+   * and distributed. Only called on the sequencer. A message with a
+   * message id the sequencer has numbered before is not added again.
+   * @param room The name of the room the message belongs to.
+   * @param note The message; its sequence number is not yet set.
+   * @return The sequence number given to the message in the room, or
+   *         -1 if the server is not the sequencer (anymore).
+   */
+  public long submit (String room, ChatNotification note)
+    throws java.rmi.RemoteException;
+
+  /**
+   * Used by the sequencer to pass on numbered messages. The receiver
+   * distributes them to its clients in sequence order, and ignores
+   * messages it already has.
+   * @param room The name of the room the messages belong to.
+   * @param rev  A ChatNotification, or a ChatBatchNotification of
+   *             consecutive messages.
+   */
+  public void relay (String room, RemoteEvent rev)
+    throws java.rmi.RemoteException;
+}
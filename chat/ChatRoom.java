@@ -0,0 +1,626 @@
+// ChatRoom.java
+// 2026-10-18 First version
+//
+// One conversation hosted by a ChatServer.
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ChatRoom is one conversation on a ChatServer. Each room has its own
+ * members, message counter, message queue, history and (optionally)
+ * message log, so rooms never wait for each other.
+ *
+ * A room has no thread of its own. When a message is added, the room
+ * schedules itself on the server's shared pool, and the task that runs
+ * distributes what is queued and then returns the thread to the pool.
+ * At most one such task runs per room at a time, which keeps the
+ * messages of a room in sequence order. A busy room gives up its thread
+ * after DRAIN_LIMIT messages and reschedules itself, so that it cannot
+ * starve the other rooms.
+ *
+ * Every notification distributed in a room carries the room's id as its
+ * event id (see RemoteEvent.getID ()), so that a client can tell which
+ * room a message belongs to. The lobby has id 0, which costs nothing on
+ * the wire.
+ *
+ * When the server is part of a cluster, messages numbered by the
+ * sequencer arrive through accept(). They may come out of order or
+ * twice; the distribution task puts them in order and drops those it
+ * already has. A message that another server submitted carries a
+ * message id, and the room remembers the number each recent id got,
+ * so that a message submitted again (after a call that timed out, or
+ * to the next sequencer) keeps its number rather than being added a
+ * second time. If a message never arrives, because the server that
+ * numbered it went away, the room skips it after gapMillis. Only
+ * numbers up to the highest one relayed are ever skipped: a number the
+ * room handed out itself always has its message on the way, even if
+ * the thread that is adding it has been held up. On the
+ * sequencer, the room also relays every message it distributes to the
+ * other servers, through one mailbox per server.
+ */
+public class ChatRoom implements Runnable
+{
+    /**
+     * The most messages distributed in one turn on the pool.
+     */
+    protected static final int DRAIN_LIMIT = 256;
+
+    /**
+     * The longest room name allowed.
+     */
+    public static final int MAX_NAME_LENGTH = 32;
+
+    /**
+     * The server that hosts the room, which is also the source of its
+     * notifications.
+     */
+    protected final ChatServer server;
+
+    /**
+     * The name of the room.
+     */
+    protected final String name;
+
+    /**
+     * The id of the room, carried as event id by its notifications.
+     */
+    protected final long id;
+
+    /**
+     * The settings of the server.
+     */
+    protected final ChatServer.Config config;
+
+    /**
+     * The shared pool on which the room distributes its messages.
+     */
+    protected final ScheduledExecutorService executor;
+
+    /**
+     * The most message ids remembered.
+     */
+    protected static final int MAX_MESSAGE_IDS = 10000;
+
+    /**
+     * The room's message counter. The new value is the sequence number
+     * of the message just added.
+     */
+    protected final AtomicInteger msgCount = new AtomicInteger();
+
+    /**
+     * Messages waiting to be distributed. Any number of RMI threads add
+     * to it without locking; only the distribution task removes from it.
+     */
+    protected final ConcurrentLinkedQueue<ChatNotification> msgQueue =
+            new ConcurrentLinkedQueue<ChatNotification>();
+
+    /**
+     * Messages taken from msgQueue ahead of their turn, held until the
+     * missing ones show up. Only used by the distribution task.
+     */
+    protected final Map<Long, ChatNotification> earlyArrivals =
+            new HashMap<Long, ChatNotification>();
+
+    /**
+     * The sequence number of the next message to distribute. Only used
+     * by the distribution task.
+     */
+    protected long nextToDeliver = 1;
+
+    /**
+     * True while the distribution task is scheduled or running.
+     */
+    protected final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * The mailboxes of the clients in the room.
+     */
+    protected final ConcurrentHashMap<RemoteEventListener, ClientMailbox> members =
+            new ConcurrentHashMap<RemoteEventListener, ClientMailbox>();
+
+    /**
+     * Counts the changes to the members and their names, so that
+     * memberNames() knows when its list is out of date.
+     */
+    protected final AtomicInteger membership = new AtomicInteger();
+
+    /**
+     * The list last made by memberNames(), or null.
+     */
+    protected volatile NameList nameList = null;
+
+    /**
+     * The mailboxes that relay the room's messages to the other servers
+     * of the cluster, by server name. Only used on the sequencer.
+     */
+    protected final ConcurrentHashMap<String, ClientMailbox> relays =
+            new ConcurrentHashMap<String, ClientMailbox>();
+
+    /**
+     * The sequence numbers of the most recent messages that carry a
+     * message id, by id. Guarded by itself.
+     */
+    protected final LinkedHashMap<Long, Long> messageIds =
+            new LinkedHashMap<Long, Long>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                    return size() > MAX_MESSAGE_IDS;
+                }
+            };
+
+    /**
+     * The highest sequence number that arrived through accept(), or 0.
+     */
+    protected final AtomicLong relayedUpTo = new AtomicLong();
+
+    /**
+     * When (System.nanoTime()) the distribution task first found the
+     * next message missing while later ones had arrived, or 0. Only used
+     * by the distribution task.
+     */
+    protected long gapSince = 0;
+
+    /**
+     * The most recent messages, for clients that need to catch up.
+     */
+    protected final MessageHistory history;
+
+    /**
+     * The persistent log of the room's messages, or null if there is
+     * none.
+     */
+    protected MessageLog messageLog = null;
+
+    /**
+     * Creates a new ChatRoom. If logDirectory is not null, the room's
+     * log there is opened and the room continues where it stopped.
+     *
+     * @param server       The hosting server.
+     * @param name         The name of the room.
+     * @param id           The id of the room.
+     * @param config       The server's settings.
+     * @param executor     The pool to distribute on.
+     * @param logDirectory The directory of the room's log, or null.
+     */
+    public ChatRoom(ChatServer server, String name, long id,
+                    ChatServer.Config config,
+                    ScheduledExecutorService executor,
+                    File logDirectory)
+            throws IOException {
+        this.server = server;
+        this.name = name;
+        this.id = id;
+        this.config = config;
+        this.executor = executor;
+
+        history = new MessageHistory(config.historySize);
+        if (logDirectory != null)
+            openLog(logDirectory);
+    }
+
+    /**
+     * Tells whether a string can be used as a room name: 1 to
+     * MAX_NAME_LENGTH letters, digits, '-' or '_'. Room names are also
+     * used as log directory names.
+     *
+     * @param name The proposed name.
+     * @return True if it is a valid room name.
+     */
+    public static boolean isValidName(String name) {
+        if (name == null || name.isEmpty() || name.length() > MAX_NAME_LENGTH)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_')
+                return false;
+        }
+        return true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the sequence number of the last message added.
+     *
+     * @return The sequence number, or 0 if there are none.
+     */
+    public int lastSeq() {
+        return msgCount.get();
+    }
+
+    /**
+     * Opens the room's log and picks up where the previous run of the
+     * server stopped: the message counter continues from the last logged
+     * message, and the tail of the log is loaded into the history.
+     */
+    protected void openLog(File directory) throws IOException {
+        messageLog = new MessageLog(directory,
+                config.segmentBytes, config.retentionBytes,
+                config.retentionMillis);
+
+        long last = messageLog.recover();
+        msgCount.set((int) last);
+        nextToDeliver = last + 1;
+
+        long from = Math.max(1, last - history.capacity() + 1);
+        for (MessageLog.Record r : messageLog.read(from, history.capacity())) {
+            ChatNotification note = new ChatNotification(server,
+                    ChatNotification.decodeText(r.text), (int) r.seq);
+            note.eventID = id;
+            note.timestamp = r.time * 1000000L;
+            history.add(note);
+        }
+
+        server.log.info("Message log " + directory
+                + " recovered up to MSG#" + last, null);
+    }
+
+    /* *** Members *** */
+
+    /**
+     * Adds a client to the room.
+     *
+     * @param mailbox The client's mailbox.
+     */
+    public void addMember(ClientMailbox mailbox) {
+        members.put(mailbox.getListener(), mailbox);
+        membership.incrementAndGet();
+    }
+
+    /**
+     * Removes a client from the room.
+     *
+     * @param rel The client's listener.
+     * @return True if the client was in the room.
+     */
+    public boolean removeMember(RemoteEventListener rel) {
+        if (members.remove(rel) == null)
+            return false;
+        membership.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Tells the room that one of its members was renamed.
+     */
+    public void memberRenamed() {
+        membership.incrementAndGet();
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * Starts relaying the room's messages to another server.
+     *
+     * @param peer    The name of the server.
+     * @param mailbox The mailbox that delivers to it.
+     */
+    public void addRelay(String peer, ClientMailbox mailbox) {
+        ClientMailbox old = relays.put(peer, mailbox);
+        if (old != null)
+            old.close();
+    }
+
+    /**
+     * Stops relaying the room's messages to another server.
+     *
+     * @param peer The name of the server.
+     */
+    public void removeRelay(String peer) {
+        ClientMailbox old = relays.remove(peer);
+        if (old != null)
+            old.close();
+    }
+
+    /**
+     * Returns the names of the clients in the room, sorted. The list is
+     * made once and returned to every caller until a member comes, goes
+     * or is renamed. It is made without locking: if the members change
+     * while it is being made, it is kept under the count from before,
+     * so the next call makes it again.
+     *
+     * @return The member names. The array is shared and must not be
+     *         changed.
+     */
+    public String[] memberNames() {
+        int version = membership.get();
+        NameList list = nameList;
+        if (list != null && list.version == version)
+            return list.names;
+
+        List<String> names = new ArrayList<String>(members.size());
+        for (ClientMailbox mailbox : members.values())
+            names.add(mailbox.getName());
+        Collections.sort(names);
+        list = new NameList(version, names.toArray(new String[names.size()]));
+        nameList = list;
+        return list.names;
+    }
+
+    /**
+     * The member names as they were at one count of membership.
+     */
+    protected static final class NameList {
+        final int version;
+        final String[] names;
+
+        NameList(int version, String[] names) {
+            this.version = version;
+            this.names = names;
+        }
+    }
+
+    /* *** Messages *** */
+
+    /**
+     * Adds a notification to the room's queue. It is given the room's
+     * id and next sequence number, and the distribution task is
+     * scheduled if it is not already. Called by many RMI threads at once
+     * without locking, except for a notification with a message id,
+     * which is looked up first: if the room already has it, it is not
+     * added again.
+     *
+     * @param note The notification to add.
+     * @return The sequence number given to the notification.
+     */
+    public long addMessage(ChatNotification note) {
+        long id = note.getMessageId();
+        if (id == 0)
+            return number(note);
+        synchronized (messageIds) {
+            Long known = messageIds.get(id);
+            if (known != null)
+                return known;
+            long seq = number(note);
+            messageIds.put(id, seq);
+            return seq;
+        }
+    }
+
+    /**
+     * Numbers a notification and queues it for distribution.
+     */
+    protected int number(ChatNotification note) {
+        int seq = msgCount.incrementAndGet();
+        note.seqNum = seq;
+        note.eventID = id;
+        msgQueue.offer(note);
+
+        // Log a server console diagnostic; the log thread writes it
+        server.log.message((id == 0) ? null : name, note);
+
+        schedule();
+        return seq;
+    }
+
+    /**
+     * Adds a notification that was numbered by the cluster's sequencer
+     * to the room's queue. Duplicates are dropped by the distribution
+     * task; a message that already arrived under another number, which
+     * can only happen while the sequencer changes, is dropped here.
+     *
+     * @param note The notification, with its sequence number set.
+     */
+    public void accept(ChatNotification note) {
+        long seq = note.getSequenceNumber();
+        note.eventID = id;
+
+        long messageId = note.getMessageId();
+        if (messageId != 0) {
+            synchronized (messageIds) {
+                Long known = messageIds.get(messageId);
+                if (known != null && known != seq) {
+                    server.log.warn(name + ": MSG#" + seq + " is MSG#" + known
+                            + " again, dropped", null);
+                    return;
+                }
+                messageIds.put(messageId, seq);
+            }
+        }
+
+        // Keep the counter at the highest number seen, in case this
+        // server becomes the sequencer.
+        int count = msgCount.get();
+        while (count < seq && !msgCount.compareAndSet(count, (int) seq))
+            count = msgCount.get();
+        long relayed = relayedUpTo.get();
+        while (relayed < seq && !relayedUpTo.compareAndSet(relayed, seq))
+            relayed = relayedUpTo.get();
+
+        msgQueue.offer(note);
+        schedule();
+    }
+
+    /**
+     * Returns the messages after a given one, as one batch.
+     *
+     * @param seq The sequence number of the last message seen.
+     * @return The newer messages, or null if there are none.
+     */
+    public ChatBatchNotification getHistory(long seq) {
+        ChatNotification[] notes = history.getSince(seq);
+        if (notes.length == 0)
+            return null;
+        return new ChatBatchNotification(server, notes);
+    }
+
+    /**
+     * Schedules the distribution task on the pool, unless it is already
+     * scheduled or running.
+     */
+    protected void schedule() {
+        if (scheduled.compareAndSet(false, true))
+            submit();
+    }
+
+    /**
+     * Hands the distribution task to the pool. Once the server is
+     * shutting down, the pool refuses it and the message is dropped.
+     */
+    protected void submit() {
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException rex) {
+            // Shutting down.
+        }
+    }
+
+    /**
+     * Retrieves the next message, in sequence number order, from the
+     * message queue. Messages that have already been distributed, or
+     * are already waiting, are dropped. Must only be called by the
+     * distribution task.
+     *
+     * @return The next message, or null if it has not arrived yet.
+     */
+    protected ChatNotification getNextMessage() {
+        ChatNotification note = earlyArrivals.remove(nextToDeliver);
+
+        while (note == null) {
+            ChatNotification head = msgQueue.poll();
+            if (head == null)
+                return null;
+            long seq = head.getSequenceNumber();
+            if (seq == nextToDeliver)
+                note = head;
+            else if (seq > nextToDeliver && !earlyArrivals.containsKey(seq))
+                earlyArrivals.put(seq, head);
+        }
+
+        nextToDeliver++;
+        return note;
+    }
+
+    /**
+     * Skips the missing messages before the earliest that has arrived,
+     * if they have been missing for longer than gapMillis. Otherwise
+     * makes sure the distribution task looks again later. Only numbers
+     * up to relayedUpTo, which the sequencer may have lost, are
+     * skipped; a number this room handed out itself is waited for.
+     * Only called by the distribution task.
+     *
+     * @return True if messages were skipped.
+     */
+    protected boolean skipGap() {
+        long relayed = relayedUpTo.get();
+        if (nextToDeliver > relayed)
+            return false;
+        long now = System.nanoTime();
+        if (gapSince == 0) {
+            // First seen: look again when the gap would be too old.
+            gapSince = now;
+            try {
+                executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        schedule();
+                    }
+                }, config.gapMillis + 1, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException rex) {
+                // Shutting down.
+            }
+            return false;
+        }
+        if (now - gapSince < TimeUnit.MILLISECONDS.toNanos(config.gapMillis))
+            return false;
+
+        long first = relayed + 1;
+        for (Long seq : earlyArrivals.keySet())
+            first = Math.min(first, seq);
+        server.log.warn(name + ": skipping missing MSG#" + nextToDeliver
+                + " to MSG#" + (first - 1), null);
+        nextToDeliver = first;
+        gapSince = 0;
+        return true;
+    }
+
+    /**
+     * The distribution task. Prepares each message, keeps it for
+     * catch-up and places it in the mailboxes of the members. Returns
+     * when the queue is empty, or after DRAIN_LIMIT messages.
+     *
+     * The scheduled flag is cleared before the queue is checked a last
+     * time, and addMessage() sets it after adding to the queue, so a
+     * message is never left behind without a task to distribute it.
+     */
+    @Override
+    public void run() {
+        int n = 0;
+
+        while (true) {
+            ChatNotification note = getNextMessage();
+            if (note == null && !earlyArrivals.isEmpty() && skipGap())
+                continue;
+            if (note != null) {
+                gapSince = 0;
+                config.deliveryStrategy.prepare(note);
+                history.add(note);
+                if (messageLog != null)
+                    messageLog.append(note);
+                broadcast(note);
+
+                if (++n == DRAIN_LIMIT) {
+                    // Let the other rooms have the thread.
+                    submit();
+                    return;
+                }
+            } else {
+                scheduled.set(false);
+                if (msgQueue.isEmpty() || !scheduled.compareAndSet(false, true))
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Places a notification in the mailbox of every member. Clients
+     * whose mailbox overflows under the EVICT policy are removed from
+     * the server.
+     *
+     * @param note The notification to deliver.
+     */
+    protected void broadcast(ChatNotification note) {
+        for (ClientMailbox mailbox : members.values()) {
+            if (!mailbox.offer(note))
+                server.evictClient(mailbox.getListener());
+        }
+        if (server.isSequencer()) {
+            for (ClientMailbox relay : relays.values())
+                relay.offer(note);
+        }
+    }
+
+    /**
+     * Closes the room's log after it has written what is queued.
+     */
+    public void close() {
+        for (ClientMailbox relay : relays.values())
+            relay.close();
+        if (messageLog != null)
+            messageLog.close();
+    }
+}
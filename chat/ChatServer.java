@@ -8,10 +8,13 @@
 // that implement ChatServerInterface. The message strings are then
 // sent back out as CharNotification events to all callbacks
 // (i.e. RemoteEventListeners) that are registered with the server.
+// The server hosts any number of rooms, each a conversation of its own.
+// Several servers can form a cluster in which all rooms are shared.
 
 // Standard Java
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.InputStreamReader;
 import java.io.IOException;
 
@@ -19,13 +22,24 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 import java.rmi.Naming;
+import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.ExportException;
+import java.rmi.server.RMISocketFactory;
 import java.rmi.server.UnicastRemoteObject;
 
-import java.util.LinkedList;
-import java.util.Vector;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The ChatServer class is a main program application that implements
@@ -37,36 +51,24 @@ public class ChatServer
         UnicastRemoteObject        // for Java RMI
         implements
         ChatServerInterface,    // for clients
-        Runnable            // for the distribution thread.
+        ChatPeerInterface       // for the other servers of the cluster
 {
     /**
-     * The server's message counter. Increments monotonically with each
-     * message dispatched.
+     * The registered clients. Each client's notification object (its
+     * RemoteEventListener), outbound mailbox and current name are kept
+     * together in the directory. The directory spans all rooms, so a
+     * name is unique on the server.
      */
-    protected int msgCount = 0;
+    protected final UserDirectory clients = new UserDirectory();
 
     /**
-     * Incoming messages are placed on the message queue. The
-     * distribution thread consumes the queue by sending copies off to
-     * registered clients. Class LinkedList is not thread-safe, so access
-     * to it must be synchronized.
+     * Whether each client is active or away, and which clients watch
+     * that. The changes are sent every config.presenceMillis.
      */
-    protected LinkedList<String> msgQueue = new LinkedList<String>();
-
-    /**
-     * The notification objects of registered clients are held in this
-     * vector. The Vector class is thread-safe, but since we are using
-     * an iterator from it while sending messages we must synchronize on
-     * it anyway. The iterator will not survive the vector being
-     * modified.
-     */
-    protected Vector<RemoteEventListener> clients =
-            new Vector<RemoteEventListener>();
-
-    protected Vector<String> clientNames = new Vector<>();
+    protected final PresenceTable presence = new PresenceTable(this);
 
     public boolean containsClientName(String username) {
-        return clientNames.contains(username);
+        return clients.containsName(username);
     }
 
     /**
@@ -75,9 +77,260 @@ public class ChatServer
     protected String serverName = null;
 
     /**
-     * The delivery thread runs while this flag is true.
+     * The settings this server was started with.
+     */
+    protected final Config config;
+
+    /**
+     * The pool of threads shared by all rooms. The rooms distribute
+     * their messages on it, and each client mailbox drains itself on
+     * it, so a slow or unreachable client only delays its own delivery.
+     */
+    protected final ScheduledExecutorService deliveryPool;
+
+    /**
+     * The rooms on this server, by name. A room is created when the
+     * first client joins it, and is kept after that.
+     */
+    protected final ConcurrentHashMap<String, ChatRoom> rooms =
+            new ConcurrentHashMap<String, ChatRoom>();
+
+    /**
+     * The room every client is in when it registers, and returns to
+     * when it leaves another room. Its id is 0.
+     */
+    protected final ChatRoom lobby;
+
+    /**
+     * The id of the next room to be created.
+     */
+    protected final AtomicLong nextRoomId = new AtomicLong(1);
+
+    /**
+     * The id given to the last client that registered. It starts from
+     * a number derived from the server name, so that the clients of
+     * the servers of a cluster get different ids.
+     */
+    protected final AtomicLong nextClientId;
+
+    /**
+     * The id given to the last message submitted to the sequencer. Like
+     * client ids, message ids start from a number derived from the
+     * server name, so that those of different servers do not meet.
+     */
+    protected final AtomicLong nextMessageId;
+
+    /**
+     * How many times a message is submitted to the cluster's sequencer,
+     * with a scan for peers in between, before it is given up.
+     */
+    protected static final int SUBMIT_ATTEMPTS = 3;
+
+    /**
+     * The other servers of our cluster, by registry name. Kept up to
+     * date by discoverPeers().
+     */
+    protected final ConcurrentHashMap<String, ChatPeerInterface> peers =
+            new ConcurrentHashMap<String, ChatPeerInterface>();
+
+    /**
+     * The sequencer of the cluster, which numbers the messages of all
+     * rooms, and its name. The sequencer is the server with the lowest
+     * name. Null when this server is the sequencer, which includes when
+     * it is not part of a cluster.
+     */
+    protected volatile ChatPeerInterface sequencer = null;
+    protected volatile String sequencerName = null;
+
+    /**
+     * False after a scan for peers has failed, so that the failure is
+     * reported once rather than on every scan. Guarded by
+     * discoveryLock.
+     */
+    protected boolean registryReachable = true;
+
+    /**
+     * Held while scanning for peers, which is done both periodically
+     * and by publish() when the sequencer fails.
+     */
+    protected final Object discoveryLock = new Object();
+
+    /**
+     * The NIO transport, or null if clients can only use RMI.
+     */
+    protected NioTransport nioTransport = null;
+
+    /**
+     * Where the server logs what happens, off the threads that serve
+     * the clients.
+     */
+    protected final ConsoleLog log;
+
+    /**
+     * Limits how fast each client may send, or null for no limit.
      */
-    protected boolean runDelivery = true;
+    protected final RateLimiter rateLimiter;
+
+    /**
+     * The theoretical arrival time (see RateLimiter) shared by all the
+     * callers that are not registered clients: say(String), and say()
+     * or sayAll() with an unknown listener. They are limited together,
+     * as if they were one client.
+     */
+    protected final AtomicLong anonymousSendTime = new AtomicLong();
+
+    /**
+     * The tunable settings of a ChatServer. The defaults are used unless
+     * they are changed on the commandline.
+     */
+    public static class Config {
+        /**
+         * The number of threads in the delivery pool.
+         */
+        public int deliveryThreads = 16;
+
+        /**
+         * The maximum number of notifications pending per client.
+         */
+        public int highWaterMark = 1000;
+
+        /**
+         * What to do with a client whose mailbox is full.
+         */
+        public ClientMailbox.OverflowPolicy overflowPolicy =
+                ClientMailbox.OverflowPolicy.DROP_OLDEST;
+
+        /**
+         * The maximum number of messages sent to a client in one remote
+         * call.
+         */
+        public int maxBatch = 64;
+
+        /**
+         * How long, in milliseconds, a client's mailbox waits for a batch
+         * to fill before it is sent. Zero sends whatever is pending at
+         * once.
+         */
+        public long lingerMillis = 0;
+
+        /**
+         * How each notification is prepared before it is queued for the
+         * clients. By default a text of a kilobyte or more is sent
+         * compressed: below that deflate saves little and costs more
+         * than it saves in sending.
+         */
+        public DeliveryStrategy deliveryStrategy =
+                new DeliveryStrategy.Compress(1024);
+
+        /**
+         * The number of recent messages kept for catch-up, per room.
+         */
+        public int historySize = 1000;
+
+        /**
+         * The directory of the persistent message log, or null to keep
+         * no log. The lobby is logged in the directory itself and every
+         * other room in a subdirectory named after it.
+         */
+        public String logDirectory = null;
+
+        /**
+         * The size of a message log segment, in bytes.
+         */
+        public int segmentBytes = 16 << 20;
+
+        /**
+         * The message log is trimmed to about this many bytes.
+         */
+        public long retentionBytes = 1L << 30;
+
+        /**
+         * Message log segments older than this, in milliseconds, are
+         * deleted.
+         */
+        public long retentionMillis = 7L * 24 * 3600 * 1000;
+
+        /**
+         * How long, in milliseconds, a registration lasts unless the
+         * client renews it.
+         */
+        public long leaseMillis = 30 * 1000;
+
+        /**
+         * A client is removed when this many remote calls to it have
+         * failed in a row.
+         */
+        public int maxFailures = 3;
+
+        /**
+         * How long, in milliseconds, to wait for a connection to a client.
+         * Used by main() when it installs the TimeoutSocketFactory.
+         */
+        public int connectTimeoutMillis = 2000;
+
+        /**
+         * How long, in milliseconds, to wait for a client to answer a
+         * call. Used by main() when it installs the TimeoutSocketFactory.
+         */
+        public int readTimeoutMillis = 10 * 1000;
+
+        /**
+         * The name of the cluster this server joins, or null to run on
+         * its own. Servers with the same cluster name in the same
+         * rmiregistry share their rooms.
+         */
+        public String clusterName = null;
+
+        /**
+         * How often, in milliseconds, the rmiregistry is scanned for
+         * the other servers of the cluster.
+         */
+        public long discoveryMillis = 2000;
+
+        /**
+         * How long, in milliseconds, a room waits for a missing message
+         * from the cluster before it skips it.
+         */
+        public long gapMillis = 2000;
+
+        /**
+         * The port on which clients can connect with the NIO transport,
+         * to have their notifications streamed to them instead of being
+         * called back over RMI; 0 for any free port, or -1 to offer RMI
+         * only.
+         */
+        public int nioPort = 0;
+
+        /**
+         * How much the server logs on the console, and, when it logs
+         * messages, one in how many it logs.
+         */
+        public ConsoleLog.Verbosity logVerbosity = ConsoleLog.Verbosity.MESSAGES;
+        public int logSampleEvery = 1;
+
+        /**
+         * How many messages per second a client may send, after a burst
+         * of rateBurst at once; 0 for no limit. A message over the limit
+         * is rejected, or held for up to rateMaxDelayMillis and then
+         * rejected, depending on the policy.
+         */
+        public double rateLimit = 50;
+        public int rateBurst = 100;
+        public RateLimiter.Policy ratePolicy = RateLimiter.Policy.REJECT;
+        public long rateMaxDelayMillis = 500;
+
+        /**
+         * How often, in milliseconds, the changes of presence are sent
+         * to the clients that watch it. The changes made meanwhile go
+         * out together.
+         */
+        public long presenceMillis = 500;
+    }
+
+    /**
+     * How often, in milliseconds, the reaper looks for dead clients.
+     */
+    protected static final long REAP_INTERVAL = 1000;
 
     /**
      * Creates a new ChatServer.
@@ -85,6 +338,21 @@ public class ChatServer
      * @param name The identifying name of this server instance.
      */
     public ChatServer(String name)
+            throws
+            IOException,
+            RemoteException,
+            UnknownHostException
+    {
+        this(name, new Config());
+    }
+
+    /**
+     * Creates a new ChatServer.
+     *
+     * @param name   The identifying name of this server instance.
+     * @param config The settings to use.
+     */
+    public ChatServer(String name, Config config)
             throws
             IOException,
             RemoteException,        // if join doesn't work
@@ -108,7 +376,41 @@ public class ChatServer
                 getClass().getName()
                         + "." + idName + "@" + host
                         + "." + Long.toString(System.currentTimeMillis());
+        nextClientId = new AtomicLong((serverName.hashCode() & 0xffffffL) << 24);
+        nextMessageId = new AtomicLong((serverName.hashCode() & 0xffffffL) << 39);
+
+        // Create the delivery pool and the lobby before clients can
+        // find us.
+
+        this.config = config;
+        log = new ConsoleLog(config.logVerbosity, config.logSampleEvery);
+        rateLimiter = (config.rateLimit > 0)
+                ? new RateLimiter(config.rateLimit, config.rateBurst,
+                        config.ratePolicy, config.rateMaxDelayMillis)
+                : null;
+        deliveryPool = Executors.newScheduledThreadPool(
+                Math.max(1, config.deliveryThreads), new DeliveryThreadFactory());
+        lobby = new ChatRoom(this, LOBBY, 0, config, deliveryPool,
+                (config.logDirectory == null) ? null : new File(config.logDirectory));
+        rooms.put(LOBBY, lobby);
+        deliveryPool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reapClients();
+            }
+        }, REAP_INTERVAL, REAP_INTERVAL, TimeUnit.MILLISECONDS);
+        deliveryPool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                presence.flush();
+            }
+        }, config.presenceMillis, config.presenceMillis, TimeUnit.MILLISECONDS);
 
+        if (config.nioPort >= 0) {
+            nioTransport = new NioTransport(this, config.nioPort,
+                    Math.max(1, config.deliveryThreads / 4));
+            System.out.println("NIO transport at " + nioTransport.getAddress());
+        }
 
         String osName = System.getProperty("os.name").toLowerCase();
 
@@ -121,7 +423,7 @@ public class ChatServer
             System.out.println("Running on Linux");
 
             // Register with the rmiregistry
-            Registry rgsty = LocateRegistry.createRegistry(1099);
+            Registry rgsty = createOrGetRegistry();
             rgsty.rebind("///" + serverName, this);
             Naming.rebind("///" + serverName, this);
 
@@ -129,155 +431,607 @@ public class ChatServer
             System.out.println("Running on another operating system: " + osName);
 
             // Register with the rmiregistry
-            Registry rgsty = LocateRegistry.createRegistry(1099);
+            Registry rgsty = createOrGetRegistry();
             rgsty.rebind("///" + serverName, this);
             Naming.rebind("///" + serverName, this);
         }
 
-        // Start the service thread.
+        // Look for the rest of the cluster now and then.
 
-        new Thread(this).start();
+        if (config.clusterName != null) {
+            deliveryPool.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    discoverPeers();
+                }
+            }, 0, config.discoveryMillis, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
-     * Unbind (remove) this service from the rmiregistry.
+     * Starts an rmiregistry in this JVM on the default port. If another
+     * server on this host already runs one, that one is used instead,
+     * so that several servers can run side by side.
+     *
+     * @return The registry.
      */
-    protected void unbind() {
+    protected static Registry createOrGetRegistry() throws RemoteException {
         try {
-            Naming.unbind("///" + serverName);
+            return LocateRegistry.createRegistry(Registry.REGISTRY_PORT);
+        } catch (ExportException eex) {
+            System.out.println("Using the rmiregistry already running on this host");
+            return LocateRegistry.getRegistry(Registry.REGISTRY_PORT);
+        }
+    }
+
+    /**
+     * Scans the rmiregistry for the other servers of our cluster, in the
+     * same way ChatClient scans it for servers, and updates the peers,
+     * the relays of the rooms and the choice of sequencer. Servers that
+     * no longer answer are dropped. Runs periodically on the delivery
+     * pool, and when the sequencer cannot be reached.
+     */
+    protected void discoverPeers() {
+        synchronized (discoveryLock) {
+            scanForPeers();
+        }
+    }
+
+    /**
+     * The body of discoverPeers(), with discoveryLock held.
+     */
+    protected void scanForPeers() {
+        Map<String, ChatPeerInterface> found = new HashMap<String, ChatPeerInterface>();
+
+        try {
+            Registry registry = LocateRegistry.getRegistry(null);
+            for (String name : registry.list()) {
+                if (!name.startsWith("ChatServer") || name.equals(serverName))
+                    continue;
+                try {
+                    ChatPeerInterface peer = peers.get(name);
+                    if (peer == null) {
+                        Remote service = registry.lookup(name);
+                        if (!(service instanceof ChatPeerInterface))
+                            continue;
+                        peer = (ChatPeerInterface) service;
+                    }
+                    if (config.clusterName.equals(peer.getClusterName()))
+                        found.put(name, peer);
+                } catch (Exception e) {
+                    // Gone, or not one of ours.
+                }
+            }
         } catch (Exception e) {
-            System.out.printf("When unbinding from rmiregistry: %s\n",
-                    e.toString());
+            // Keep the peers we know; they are dropped when they fail.
+            if (registryReachable)
+                log.warn("Scanning for peers failed: ", e);
+            registryReachable = false;
+            return;
         }
+        registryReachable = true;
+
+        for (String name : peers.keySet()) {
+            if (!found.containsKey(name))
+                dropPeer(name);
+        }
+        for (Map.Entry<String, ChatPeerInterface> e : found.entrySet()) {
+            if (peers.putIfAbsent(e.getKey(), e.getValue()) == null) {
+                log.info("Peer joined: ", e.getKey());
+                for (ChatRoom room : rooms.values())
+                    room.addRelay(e.getKey(), newRelay(e.getKey(), e.getValue(), room));
+            }
+        }
+        electSequencer();
     }
 
     /**
-     * Adds a message the the output queue.
+     * Forgets a server of the cluster that has gone away.
      *
-     * @param msg The text message to add.
+     * @param name The registry name of the server.
      */
-    protected void addMessage(String msg) {
-        synchronized (msgQueue) {
-            msgQueue.addLast(msg);
+    protected void dropPeer(String name) {
+        if (peers.remove(name) != null) {
+            log.info("Peer left: ", name);
+            for (ChatRoom room : rooms.values())
+                room.removeRelay(name);
+            electSequencer();
         }
-        msgCount++;
+    }
 
-        // Output a server console diagnostic
-        System.out.println("MSG#" + msgCount + ":" + msg);
+    /**
+     * Makes the server with the lowest name the sequencer.
+     */
+    protected synchronized void electSequencer() {
+        String lowest = serverName;
+        for (String name : peers.keySet()) {
+            if (name.compareTo(lowest) < 0)
+                lowest = name;
+        }
 
-        // Wake up the distribution thread.
-        wakeUp();
+        if (!lowest.equals(sequencerName)) {
+            sequencer = lowest.equals(serverName) ? null : peers.get(lowest);
+            sequencerName = lowest;
+            log.info("Sequencer: " + lowest
+                    + (sequencer == null ? " (this server)" : ""), null);
+        }
     }
 
     /**
-     * Retrieves the oldest (first) message from the message queue.
+     * Tells whether this server numbers the messages, that is, whether
+     * it is the sequencer of its cluster or runs on its own.
      *
-     * @return The next message, or null if the queue is empty.
+     * @return True if this server is the sequencer.
      */
-    protected String getNextMessage() {
-        if (msgQueue.isEmpty())
-            return null;
-        else synchronized (msgQueue) {
-            return msgQueue.removeFirst();
-        }
+    public boolean isSequencer() {
+        return sequencer == null;
     }
 
     /**
-     * Adds a registration to the list of clients currently connected to
-     * this ChatServer instance.
+     * Creates the mailbox through which a room relays its messages to
+     * another server.
+     */
+    protected ClientMailbox newRelay(String name, ChatPeerInterface peer, ChatRoom room) {
+        ClientMailbox relay = new ClientMailbox(new PeerRelay(name, peer, room.getName()),
+                config.highWaterMark, ClientMailbox.OverflowPolicy.DROP_OLDEST,
+                config.maxBatch, config.lingerMillis, deliveryPool);
+        relay.setName(name);
+        return relay;
+    }
+
+    /**
+     * Adds a message to a room. On the sequencer it is numbered and
+     * queued here; otherwise it is submitted to the sequencer, which
+     * relays it back to us and to the rest of the cluster.
+     *
+     * A submitted message is given a message id first. If the call
+     * fails, or the server we took for the sequencer says it is not,
+     * the registry is scanned, and the message is submitted again to
+     * whichever server is the sequencer then. A server is only dropped
+     * from the cluster when the scan finds it gone, not because one
+     * call timed out; if it is still there it gets the message again,
+     * and the id tells it that it has numbered it already. This server
+     * only numbers messages itself once the scan has made it the
+     * sequencer.
      *
-     * @param rel The RemoteEventListener implementation to add.
+     * @param room The room.
+     * @param note The message.
+     * @return The sequence number given to the message, or -1 if no
+     *         sequencer took it.
      */
-    protected void addClient(RemoteEventListener rel) {
-        synchronized (clients) {
+    protected long publish(ChatRoom room, ChatNotification note) {
+        for (int attempt = 1; ; attempt++) {
+            ChatPeerInterface seq = sequencer;
+            String seqName = sequencerName;
+            if (seq == null)
+                return room.addMessage(note);
+
+            if (note.messageId == 0)
+                note.messageId = nextMessageId.incrementAndGet();
             try {
-                clients.add(rel);
-                String msg = changeClientName(rel.getName(), true);
-                say(msg);
-            } catch (java.rmi.RemoteException e) {
-                System.out.println("Exception");
+                long n = seq.submit(room.getName(), note);
+                if (n >= 0)
+                    return n;
+                log.warn("Sequencer " + seqName + " refused a message", null);
+            } catch (RemoteException rex) {
+                log.warn("Sequencer " + seqName + " unreachable: ", rex);
             }
+            if (attempt == SUBMIT_ATTEMPTS) {
+                log.warn("Message for " + room.getName() + " dropped, no sequencer took it", null);
+                return -1;
+            }
+            discoverPeers();
         }
-        System.out.println("Added client : " + rel.toString());
     }
 
     /**
-     * Removes a registration from the list of clients currently
-     * connected to this ChatServer instance.
+     * Applies the rate limit to a message from a client.
      *
-     * @param rel The RemoteEventListener implementation to remove.
+     * @param mailbox The mailbox of the client, or null for a caller
+     *                that is not registered, which shares
+     *                anonymousSendTime with all the others.
+     * @throws RateLimitedException If the message is refused.
      */
-    protected void removeClient(RemoteEventListener rel) {
-        synchronized (clients) {
-            clients.remove(rel);
-            try {
-                String clientName = rel.getName();
-                clientNames.remove(clientName);
-                say(clientName + " disconnected");
-            } catch (RemoteException e) {
-                System.out.println("Can't remove user from list of current users");
-            }
+    protected void limit(ClientMailbox mailbox) throws RateLimitedException {
+        if (rateLimiter == null)
+            return;
+        if (mailbox == null) {
+            rateLimiter.acquire(anonymousSendTime);
+            return;
+        }
+        try {
+            rateLimiter.acquire(mailbox.getSendTime());
+        } catch (RateLimitedException rle) {
+            mailbox.countLimited();
+            throw rle;
         }
-        System.out.println("Removed client : " + rel.toString());
     }
 
-    protected String changeClientName(String msg, boolean newClient) {
-        String newName;
-        String message;
-        if (newClient) {
-            newName = msg;
-            message = "System: New chat member: " + newName;
-        } else {
-            String[] changeName = msg.split(": ");
-            clientNames.remove(changeName[1].substring(0, changeName[1].length() - 3));
-            newName = changeName[2];
-            if (changeName.length > 3) {
-                for (int i = 3; i < changeName.length; i++) {
-                    newName += ": " + changeName[i];
-                }
-            }
-            message = msg;
+    /**
+     * Creates a message said by a client, marked with the client's id,
+     * and with its name if the text starts with "name: ". Its timestamp
+     * is the time it was received.
+     *
+     * A new notification is made for each message rather than taken
+     * from a pool: the same object is held by the room's history, the
+     * message log and the mailbox of every member until each has sent
+     * it, so there is no moment at which it could safely be reused.
+     *
+     * @param mailbox The mailbox of the client, or null if it is not
+     *                registered.
+     * @param msg     The text.
+     * @return The message, not yet numbered.
+     */
+    protected ChatNotification newMessage(ClientMailbox mailbox, String msg) {
+        ChatNotification note = new ChatNotification(this, msg, 0);
+        if (mailbox != null) {
+            note.senderId = mailbox.getClientId();
+            String name = mailbox.getName();
+            if (name != null && !name.isEmpty() && msg.startsWith(name)
+                    && msg.startsWith(": ", name.length()))
+                note.senderNameLength = name.length();
         }
-        if (clientNames.contains(newName)) {
-            int postfix = 1;
-            while (clientNames.contains(newName + postfix)) {
-                postfix++;
+        return note;
+    }
+
+    /**
+     * Returns a room, creating it if it does not exist yet. The log of
+     * a room other than the lobby is kept in a subdirectory of the log
+     * directory, named after the room.
+     *
+     * @param name The name of the room, which must be valid.
+     * @return The room.
+     */
+    protected ChatRoom getRoom(String name) throws IOException {
+        ChatRoom room = rooms.get(name);
+        if (room != null)
+            return room;
+
+        synchronized (rooms) {
+            room = rooms.get(name);
+            if (room == null) {
+                File dir = (config.logDirectory == null)
+                        ? null : new File(config.logDirectory, name);
+                room = new ChatRoom(this, name, nextRoomId.getAndIncrement(),
+                        config, deliveryPool, dir);
+                for (Map.Entry<String, ChatPeerInterface> e : peers.entrySet())
+                    room.addRelay(e.getKey(), newRelay(e.getKey(), e.getValue(), room));
+                rooms.put(name, room);
+                log.info("Created room ", name);
             }
-            newName += postfix;
-            message += postfix;
+            return room;
+        }
+    }
+
+    /**
+     * Unbind (remove) this service from the rmiregistry.
+     */
+    protected void unbind() {
+        try {
+            Naming.unbind("///" + serverName);
+        } catch (Exception e) {
+            System.out.printf("When unbinding from rmiregistry: %s\n",
+                    e.toString());
+        }
+    }
+
+    /**
+     * Adds a message to the lobby.
+     *
+     * @param msg The text message to add.
+     * @return The sequence number given to the message.
+     */
+    protected long addMessage(String msg) {
+        return publish(lobby, new ChatNotification(this, msg, 0));
+    }
+
+    /**
+     * Adds a registration to the list of clients currently connected to
+     * this ChatServer instance. The client starts out in the lobby. If
+     * the client's name is taken, it is given a variant of it, and the
+     * name it got is announced. No remote calls are made to the client.
+     *
+     * @param rel   The RemoteEventListener implementation to add.
+     * @param name  The name the client wants to use.
+     * @param lease True if the client will renew a lease, false if it
+     *              is an older client that is kept until it fails.
+     * @return The name the client got, or null if it was already
+     *         registered.
+     */
+    protected String addClient(RemoteEventListener rel, String name,
+                               boolean lease) {
+        if (name == null || name.trim().isEmpty())
+            name = "Anonymous";
+
+        ClientMailbox mailbox = new ClientMailbox(rel, config.highWaterMark,
+                config.overflowPolicy, config.maxBatch,
+                config.lingerMillis, deliveryPool);
+        mailbox.setClientId(nextClientId.incrementAndGet());
+        if (lease)
+            mailbox.renewLease(System.currentTimeMillis() + config.leaseMillis);
+
+        // The mailbox has its room before anyone can find it, so that a
+        // removal right after it is added finds the room. The removal
+        // may even come before the mailbox is in the room; it is then
+        // left out of the room and nothing is announced.
+        mailbox.setRoom(lobby);
+        String assigned = clients.add(mailbox, name);
+        if (assigned == null)
+            return null;     // already registered
+
+        synchronized (mailbox) {
+            if (mailbox.isClosed())
+                return assigned;
+            lobby.addMember(mailbox);
+            presence.set(assigned, PresenceEvent.ACTIVE);
         }
-        clientNames.add(newName);
-        return message;
+        publish(lobby, new MemberEvent(this, MemberEvent.JOINED, assigned, null));
+        log.info("Added client : ", rel);
+        return assigned;
     }
 
+    /**
+     * Removes a registration from the list of clients currently
+     * connected to this ChatServer instance, and from its room.
+     *
+     * @param rel The RemoteEventListener implementation to remove.
+     */
+    protected void removeClient(RemoteEventListener rel) {
+        ClientMailbox mailbox = clients.remove(rel);
+        if (mailbox == null)
+            return;
+
+        ChatRoom room;
+        synchronized (mailbox) {
+            room = mailbox.getRoom();
+            room.removeMember(rel);
+            mailbox.close();
+        }
+        presence.watch(mailbox, false);
+        presence.remove(mailbox.getName());
+        publish(room, new MemberEvent(this, MemberEvent.LEFT, mailbox.getName(), null));
+        log.info("Removed client : ", rel);
+    }
 
     /* *** Interface ChatServerInterface *** */
 
     @Override
     public void say(String msg) throws RemoteException {
         if (msg != null) {
-            if (msg.split(": ", 2)[0].equalsIgnoreCase("Username changed from")) {
-                msg = changeClientName(msg, false);
-            } else if (msg.equalsIgnoreCase(".users")) {
-                msg = ".users\nCurrent users: ";
-                for (String user : clientNames) {
-                    msg += "\n" + user;
-                }
-            }
+            limit(null);
             addMessage(msg);
         }
     }
 
+    @Override
+    public long say(RemoteEventListener rel, String msg) throws RemoteException {
+        if (msg == null)
+            return 0;
+        ClientMailbox mailbox = (rel == null) ? null : clients.get(rel);
+        limit(mailbox);
+        ChatRoom room = (mailbox == null) ? lobby : mailbox.getRoom();
+        long seq = publish(room, newMessage(mailbox, msg));
+        if (seq < 0)
+            throw new RemoteException("No sequencer in the cluster took the message");
+        return seq;
+    }
+
+    @Override
+    public long[] sayAll(RemoteEventListener rel, String[] msgs) throws RemoteException {
+        long[] seqs = new long[(msgs == null) ? 0 : msgs.length];
+        if (seqs.length == 0)
+            return seqs;
+        ClientMailbox mailbox = (rel == null) ? null : clients.get(rel);
+        ChatRoom room = (mailbox == null) ? lobby : mailbox.getRoom();
+        boolean accepted = false;
+        for (int i = 0; i < seqs.length; i++) {
+            if (msgs[i] == null)
+                continue;
+            try {
+                limit(mailbox);
+            } catch (RateLimitedException rle) {
+                if (!accepted)
+                    throw rle;
+                Arrays.fill(seqs, i, seqs.length, -1);
+                break;
+            }
+            seqs[i] = publish(room, newMessage(mailbox, msgs[i]));
+            if (seqs[i] < 0) {
+                if (!accepted)
+                    throw new RemoteException("No sequencer in the cluster took the message");
+                Arrays.fill(seqs, i, seqs.length, -1);
+                break;
+            }
+            accepted = true;
+        }
+        return seqs;
+    }
+
+    @Override
+    public boolean block(RemoteEventListener rel, String name) throws RemoteException {
+        ClientMailbox mailbox = (rel == null) ? null : clients.get(rel);
+        ClientMailbox other = (name == null) ? null : clients.getByName(name.trim());
+        if (mailbox == null || other == null || other == mailbox)
+            return false;
+        mailbox.block(other.getClientId());
+        return true;
+    }
+
+    @Override
+    public boolean unblock(RemoteEventListener rel, String name) throws RemoteException {
+        ClientMailbox mailbox = (rel == null) ? null : clients.get(rel);
+        ClientMailbox other = (name == null) ? null : clients.getByName(name.trim());
+        if (mailbox == null || other == null)
+            return false;
+        return mailbox.unblock(other.getClientId());
+    }
+
+    @Override
+    public boolean setPresence(RemoteEventListener rel, int state)
+            throws RemoteException {
+        ClientMailbox mailbox = (rel == null) ? null : clients.get(rel);
+        if (mailbox == null
+                || (state != PresenceEvent.ACTIVE && state != PresenceEvent.AWAY))
+            return false;
+        presence.set(mailbox.getName(), state);
+        return true;
+    }
+
+    @Override
+    public PresenceEvent watchPresence(RemoteEventListener rel, boolean watch)
+            throws RemoteException {
+        ClientMailbox mailbox = (rel == null) ? null : clients.get(rel);
+        if (mailbox == null)
+            return null;
+        presence.watch(mailbox, watch);
+        return watch ? presence.snapshot() : null;
+    }
+
     @Override
     public String getName() throws RemoteException {
         return serverName;
     }
 
+    @Override
+    public ChatBatchNotification getHistory(long seq) throws RemoteException {
+        return lobby.getHistory(seq);
+    }
+
+    @Override
+    public ChatBatchNotification getHistory(String room, long seq)
+            throws RemoteException {
+        ChatRoom r = (room == null) ? null : rooms.get(room);
+        return (r == null) ? null : r.getHistory(seq);
+    }
+
+    @Override
+    public long join(RemoteEventListener rel, String room) throws RemoteException {
+        ClientMailbox mailbox = (rel == null) ? null : clients.get(rel);
+        if (mailbox == null || !ChatRoom.isValidName(room))
+            return -1;
+
+        ChatRoom to;
+        try {
+            to = getRoom(room);
+        } catch (IOException iox) {
+            log.warn("Cannot open room " + room + ": ", iox);
+            return -1;
+        }
+
+        ChatRoom from;
+        synchronized (mailbox) {
+            // Removed since we looked it up: joining now would leave a
+            // member in the room that nobody removes.
+            if (mailbox.isClosed())
+                return -1;
+            from = mailbox.getRoom();
+            if (from == to || from == null)
+                return to.getId();
+            from.removeMember(rel);
+            mailbox.setRoom(to);
+            to.addMember(mailbox);
+        }
+
+        String name = mailbox.getName();
+        publish(from, new MemberEvent(this, MemberEvent.EXITED, name, null));
+        publish(to, new MemberEvent(this, MemberEvent.ENTERED, name, null));
+        return to.getId();
+    }
+
+    @Override
+    public int getLoad() throws RemoteException {
+        return clients.size();
+    }
+
+    @Override
+    public String getTransportAddress() throws RemoteException {
+        try {
+            return (nioTransport == null) ? null : nioTransport.getAddress();
+        } catch (IOException iox) {
+            return null;
+        }
+    }
+
+    @Override
+    public String[] listRooms() throws RemoteException {
+        String[] names = rooms.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        return names;
+    }
+
     @Override
     public void register(RemoteEventListener rel) throws RemoteException {
         if (rel != null) {
-            addClient(rel);
+            // Older clients do not tell us their name, so we have to
+            // ask. This is a remote call, but no lock is held.
+            String name = null;
+            try {
+                name = rel.getName();
+            } catch (RemoteException e) {
+                log.warn("Can't get the name of new client ", rel);
+            }
+            addClient(rel, name, false);
+        }
+    }
+
+    @Override
+    public ChatLease register(RemoteEventListener rel, String name)
+            throws RemoteException {
+        if (rel == null)
+            return null;
+        String assigned = addClient(rel, name, true);
+        if (assigned == null) {
+            // Already registered; renew and report the name it has.
+            ClientMailbox mailbox = clients.get(rel);
+            if (mailbox != null) {
+                mailbox.renewLease(System.currentTimeMillis() + config.leaseMillis);
+                assigned = mailbox.getName();
+            } else {
+                assigned = name;
+            }
+        }
+        return new ChatLease(assigned, config.leaseMillis);
+    }
+
+    @Override
+    public long renew(RemoteEventListener rel) throws RemoteException {
+        ClientMailbox mailbox = (rel == null) ? null : clients.get(rel);
+        if (mailbox == null)
+            return 0;
+        mailbox.renewLease(System.currentTimeMillis() + config.leaseMillis);
+        return config.leaseMillis;
+    }
+
+    @Override
+    public String rename(RemoteEventListener rel, String name)
+            throws RemoteException {
+        ClientMailbox mailbox = (rel == null) ? null : clients.get(rel);
+        if (mailbox == null)
+            return null;
+        if (name == null || name.trim().isEmpty())
+            return mailbox.getName();
+
+        // The name stays the same if the client was removed meanwhile.
+        String oldName = mailbox.getName();
+        String newName = clients.rename(mailbox, name);
+        if (!newName.equals(oldName)) {
+            mailbox.getRoom().memberRenamed();
+            presence.rename(oldName, newName);
+            publish(mailbox.getRoom(),
+                    new MemberEvent(this, MemberEvent.RENAMED, newName, oldName));
         }
+        return newName;
+    }
+
+    @Override
+    public String[] listUsers() throws RemoteException {
+        return clients.names();
+    }
+
+    @Override
+    public String[] listUsers(String room) throws RemoteException {
+        ChatRoom r = (room == null) ? null : rooms.get(room);
+        return (r == null) ? new String[0] : r.memberNames();
     }
 
     @Override
@@ -287,62 +1041,247 @@ public class ChatServer
         }
     }
 
+    /* *** Interface ChatPeerInterface *** */
+
+    @Override
+    public String getClusterName() throws RemoteException {
+        return config.clusterName;
+    }
+
+    @Override
+    public long submit(String room, ChatNotification note) throws RemoteException {
+        if (!isSequencer() || !ChatRoom.isValidName(room) || note == null)
+            return -1;
+        try {
+            return getRoom(room).addMessage(note);
+        } catch (IOException iox) {
+            throw new RemoteException("Cannot open room " + room, iox);
+        }
+    }
+
+    @Override
+    public void relay(String room, RemoteEvent rev) throws RemoteException {
+        if (!ChatRoom.isValidName(room))
+            return;
+        ChatRoom r;
+        try {
+            r = getRoom(room);
+        } catch (IOException iox) {
+            throw new RemoteException("Cannot open room " + room, iox);
+        }
+
+        if (rev instanceof ChatBatchNotification) {
+            ChatBatchNotification batch = (ChatBatchNotification) rev;
+            for (int i = 0; i < batch.size(); i++)
+                if (batch.getNotification(i) != null)
+                    r.accept(batch.getNotification(i));
+        } else if (rev instanceof ChatNotification) {
+            r.accept((ChatNotification) rev);
+        }
+    }
+
     /* *** Internal code *** */
 
     /**
-     * This method is where the delivery thread (in method run()) rests
-     * while the message queue is empty.
+     * Removes a client whose mailbox overflowed under the EVICT policy.
+     * The removal is done on the delivery pool, since the room calling
+     * this should not wait for it.
+     *
+     * @param rel The listener of the client.
      */
-    protected synchronized void snooze() {
+    protected void evictClient(final RemoteEventListener rel) {
+        log.info("Evicting slow client : ", rel);
+        deliveryPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                removeClient(rel);
+            }
+        });
+    }
+
+    /**
+     * Removes the clients whose lease has expired, and those to which
+     * the last maxFailures remote calls have failed. Runs periodically
+     * on the delivery pool.
+     */
+    protected void reapClients() {
+        long now = System.currentTimeMillis();
+        for (ClientMailbox mailbox : clients.mailboxes()) {
+            String reason = null;
+            if (mailbox.isExpired(now))
+                reason = "lease expired";
+            else if (mailbox.getConsecutiveFailures() >= config.maxFailures)
+                reason = mailbox.getConsecutiveFailures() + " failed calls";
+
+            if (reason != null) {
+                log.info("Reaping client " + mailbox.getName()
+                        + " (" + reason + ")", null);
+                removeClient(mailbox.getListener());
+            }
+        }
+    }
+
+    /**
+     * Prints the outbound queue of each registered client on the
+     * server console, to show which clients are falling behind.
+     */
+    protected void printQueues() {
+        System.out.println("Clients: " + clients.size()
+                + " (high-water mark " + config.highWaterMark
+                + ", policy " + config.overflowPolicy
+                + ", strategy " + config.deliveryStrategy
+                + ", " + presence.getWatchers() + " watching presence)");
+        for (ClientMailbox mailbox : clients.mailboxes()) {
+            ChatRoom room = mailbox.getRoom();
+            System.out.printf("  depth %5d  delivered %8d  calls %8d  dropped %6d  blocked %6d  limited %6d  failed %4d (%d in a row)  %s in %s%n",
+                    mailbox.depth(), mailbox.getDelivered(), mailbox.getCalls(),
+                    mailbox.getDropped(), mailbox.getFiltered(), mailbox.getLimited(),
+                    mailbox.getFailures(),
+                    mailbox.getConsecutiveFailures(), mailbox.getName(),
+                    (room == null) ? "-" : room.getName());
+        }
+    }
+
+    /**
+     * Prints the rooms on the server console, with the number of
+     * members and messages in each.
+     */
+    protected void printRooms() {
+        String[] names = rooms.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        System.out.println("Rooms: " + names.length);
+        for (String name : names) {
+            ChatRoom room = rooms.get(name);
+            System.out.printf("  members %5d  messages %8d  %s%n",
+                    room.size(), room.lastSeq(), name);
+        }
+    }
+
+    /**
+     * Stops the delivery pool and closes the logs of all rooms after
+     * they have written what is queued.
+     */
+    protected void shutdown() {
+        if (nioTransport != null)
+            nioTransport.close();
+        deliveryPool.shutdown();
         try {
-            wait();
+            deliveryPool.awaitTermination(5, TimeUnit.SECONDS);
         } catch (InterruptedException iex) {
-        } catch (IllegalMonitorStateException ims) {
+            Thread.currentThread().interrupt();
         }
+        for (ChatRoom room : rooms.values())
+            room.close();
+        log.close();
+        System.out.println("\nDelivery stopped.");
     }
 
     /**
-     * This method is called when the service interface has added a new
-     * message to the message queue. If the delivery thread is waiting
-     * in snooze(), it will continue as soon as this method has exited.
-     * The thread that calls this method is the RMI service thread, the
-     * thread that channels remote requests into the service interface code.
-     * The call sequence is: say(String):addMessage(String):wakeUp().
+     * Implements the log command: sets how much is logged, and shows
+     * the setting.
+     *
+     * @param level quiet, info or messages[:n], or empty to only show
+     *              the setting.
      */
-    protected synchronized void wakeUp() {
-        notify();
+    protected void setLogging(String level) {
+        if (!level.isEmpty()) {
+            Config c = new Config();
+            if (!parseVerbosity(level, c)) {
+                System.out.println("Unknown log level: " + level);
+                return;
+            }
+            log.setVerbosity(c.logVerbosity);
+            log.setSampleEvery(c.logSampleEvery);
+        }
+        System.out.println("Logging " + log.getVerbosity().toString().toLowerCase()
+                + (log.getSampleEvery() > 1 ? ", one message in " + log.getSampleEvery() : ""));
     }
 
     /**
-     * This is where the distribution thread spends its time. It dequeues
-     * the message queue, builds a ChatNotification event and sends it to
-     * each client that has registered a remote event listener with us.
-     * When the message queue is empty, the thread calls snooze() and does
-     * nothing until it is awakened by the code that has added a new
-     * message to the message queue.
+     * Parses a log level, quiet, info or messages[:n], into the
+     * logVerbosity and logSampleEvery of a Config.
+     *
+     * @return False if it is not a log level.
      */
-    public void run() {
+    protected static boolean parseVerbosity(String level, Config config) {
+        String[] parts = level.toLowerCase().split(":", 2);
+        int every = 1;
+        if (parts.length > 1) {
+            try {
+                every = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException nfe) {
+                return false;
+            }
+            if (every < 1 || !parts[0].equals("messages"))
+                return false;
+        }
+        if (parts[0].equals("quiet"))
+            config.logVerbosity = ConsoleLog.Verbosity.QUIET;
+        else if (parts[0].equals("info"))
+            config.logVerbosity = ConsoleLog.Verbosity.INFO;
+        else if (parts[0].equals("messages"))
+            config.logVerbosity = ConsoleLog.Verbosity.MESSAGES;
+        else
+            return false;
+        config.logSampleEvery = every;
+        return true;
+    }
 
-        while (runDelivery) {
+    /**
+     * Prints the servers of the cluster on the server console.
+     */
+    protected void printPeers() {
+        if (config.clusterName == null) {
+            System.out.println("Not part of a cluster.");
+            return;
+        }
+        System.out.println("Cluster " + config.clusterName + ", sequencer "
+                + (isSequencer() ? "this server" : sequencerName));
+        for (String name : peers.keySet())
+            System.out.println("  " + name);
+    }
 
-            String msg = getNextMessage();
-            if (msg != null) {
-                // Prepare a notification
-                ChatNotification note = new ChatNotification(this, msg, msgCount);
-                // Send it to all registered listeners.
-                synchronized (clients) {
-                    try {
-                        for (RemoteEventListener rel : clients)
-                            rel.notify(note);
-                    } catch (RemoteException rex) {
-                    }
-                }
-            } else {
-                snooze();
-            }
-        } // while runDelivery
+    /**
+     * Relays the notifications given to it to another server of the
+     * cluster, for one room. It stands in for a client in a mailbox, so
+     * that relaying gets the batching and ordering of client delivery.
+     * It is a local object and is never exported.
+     */
+    protected static class PeerRelay implements RemoteEventListener {
+        protected final String name;
+        protected final ChatPeerInterface peer;
+        protected final String room;
+
+        PeerRelay(String name, ChatPeerInterface peer, String room) {
+            this.name = name;
+            this.peer = peer;
+            this.room = room;
+        }
+
+        @Override
+        public void notify(RemoteEvent rev) throws RemoteException {
+            peer.relay(room, rev);
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
 
-        System.out.println("\nDelivery thread exiting.");
+    /**
+     * Creates the named daemon threads of the delivery pool, so that a
+     * hanging remote call cannot keep the server process alive.
+     */
+    protected static class DeliveryThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "delivery-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
     }
 
     /**
@@ -383,9 +1322,22 @@ public class ChatServer
                     arg.equalsIgnoreCase("halt") ||
                     arg.equalsIgnoreCase("exit")) {
                 halted = true;
+            } else if (arg.equalsIgnoreCase("queues")) {
+                printQueues();
+            } else if (arg.equalsIgnoreCase("rooms")) {
+                printRooms();
+            } else if (arg.equalsIgnoreCase("peers")) {
+                printPeers();
+            } else if (arg.toLowerCase().startsWith("log")) {
+                setLogging(arg.substring(3).trim());
             } else if (arg.equalsIgnoreCase("help")) {
                 System.out.println("Available commands:");
                 System.out.println("quit      Shuts down the server.");
+                System.out.println("queues    Lists the outbound queue of each client.");
+                System.out.println("rooms     Lists the rooms and their members.");
+                System.out.println("peers     Lists the other servers of the cluster.");
+                System.out.println("log [quiet|info|messages[:n]]");
+                System.out.println("          Shows or sets what is logged; with n, one message in n.");
                 System.out.println("help      This text.");
             } else {
                 System.out.println("\nUnknown server command : " + arg);
@@ -393,8 +1345,7 @@ public class ChatServer
         }
 
         System.out.println("\nShutting down, please wait...");
-        runDelivery = false;
-        wakeUp();
+        shutdown();
     }
 
     /**
@@ -402,7 +1353,18 @@ public class ChatServer
      */
     protected static void usage() {
         String[] msg = {
-                "Usage: {'?'|-h|-help}|[-n server-name]"
+                "Usage: {'?'|-h|-help}|[-n server-name] [-p delivery-threads]",
+                "       [-q high-water-mark] [-o drop|coalesce|evict]",
+                "       [-b max-batch] [-l linger-millis]",
+                "       [-s once|per-call|compress[:min-bytes]]",
+                "       [-k history-size] [-d log-directory] [-g segment-mb]",
+                "       [-m log-retention-mb] [-a log-retention-hours]",
+                "       [-r lease-seconds] [-f max-failures]",
+                "       [-c connect-timeout-millis] [-w read-timeout-millis]",
+                "       [-x cluster-name] [-t rmi|nio[:port]]",
+                "       [-v quiet|info|messages[:n]]",
+                "       [-z messages-per-second[:burst]] [-j reject|delay[:max-millis]]",
+                "       [-e presence-millis]"
         };
 
         for (String s : msg)
@@ -418,6 +1380,7 @@ public class ChatServer
             UnknownHostException {
 
         String serverName = null;
+        Config config = new Config();
         int state = 0;
 
         for (int i = 0; i < argv.length; i++) {
@@ -425,6 +1388,48 @@ public class ChatServer
             if (state == 0) {
                 if (av.equalsIgnoreCase("-n")) {
                     state = 1;
+                } else if (av.equalsIgnoreCase("-p")) {
+                    state = 2;
+                } else if (av.equalsIgnoreCase("-q")) {
+                    state = 3;
+                } else if (av.equalsIgnoreCase("-o")) {
+                    state = 4;
+                } else if (av.equalsIgnoreCase("-b")) {
+                    state = 5;
+                } else if (av.equalsIgnoreCase("-l")) {
+                    state = 6;
+                } else if (av.equalsIgnoreCase("-s")) {
+                    state = 7;
+                } else if (av.equalsIgnoreCase("-k")) {
+                    state = 8;
+                } else if (av.equalsIgnoreCase("-d")) {
+                    state = 9;
+                } else if (av.equalsIgnoreCase("-g")) {
+                    state = 10;
+                } else if (av.equalsIgnoreCase("-m")) {
+                    state = 11;
+                } else if (av.equalsIgnoreCase("-a")) {
+                    state = 12;
+                } else if (av.equalsIgnoreCase("-r")) {
+                    state = 13;
+                } else if (av.equalsIgnoreCase("-f")) {
+                    state = 14;
+                } else if (av.equalsIgnoreCase("-c")) {
+                    state = 15;
+                } else if (av.equalsIgnoreCase("-w")) {
+                    state = 16;
+                } else if (av.equalsIgnoreCase("-x")) {
+                    state = 17;
+                } else if (av.equalsIgnoreCase("-t")) {
+                    state = 18;
+                } else if (av.equalsIgnoreCase("-v")) {
+                    state = 19;
+                } else if (av.equalsIgnoreCase("-z")) {
+                    state = 20;
+                } else if (av.equalsIgnoreCase("-j")) {
+                    state = 21;
+                } else if (av.equalsIgnoreCase("-e")) {
+                    state = 22;
                 } else if (av.equals("?") ||
                         av.equalsIgnoreCase("-h") ||
                         av.equalsIgnoreCase("-help") ||
@@ -438,14 +1443,240 @@ public class ChatServer
             } else if (state == 1) {
                 serverName = av;
                 state = 0;
+            } else if (state == 2) {
+                try {
+                    config.deliveryThreads = Integer.parseInt(av);
+                    if (config.deliveryThreads <= 0)
+                        throw new NumberFormatException(av);
+                } catch (NumberFormatException nfe) {
+                    System.out.printf("Not a thread count:%s%n", av);
+                    return;
+                }
+                state = 0;
+            } else if (state == 3) {
+                try {
+                    config.highWaterMark = Integer.parseInt(av);
+                    if (config.highWaterMark <= 0)
+                        throw new NumberFormatException(av);
+                } catch (NumberFormatException nfe) {
+                    System.out.printf("Not a queue length:%s%n", av);
+                    return;
+                }
+                state = 0;
+            } else if (state == 4) {
+                if (av.equalsIgnoreCase("drop")) {
+                    config.overflowPolicy = ClientMailbox.OverflowPolicy.DROP_OLDEST;
+                } else if (av.equalsIgnoreCase("coalesce")) {
+                    config.overflowPolicy = ClientMailbox.OverflowPolicy.COALESCE;
+                } else if (av.equalsIgnoreCase("evict")) {
+                    config.overflowPolicy = ClientMailbox.OverflowPolicy.EVICT;
+                } else {
+                    System.out.printf("Unknown overflow policy:%s%n", av);
+                    return;
+                }
+                state = 0;
+            } else if (state == 5) {
+                try {
+                    config.maxBatch = Integer.parseInt(av);
+                    if (config.maxBatch <= 0)
+                        throw new NumberFormatException(av);
+                } catch (NumberFormatException nfe) {
+                    System.out.printf("Not a batch size:%s%n", av);
+                    return;
+                }
+                state = 0;
+            } else if (state == 6) {
+                try {
+                    config.lingerMillis = Long.parseLong(av);
+                    if (config.lingerMillis < 0)
+                        throw new NumberFormatException(av);
+                } catch (NumberFormatException nfe) {
+                    System.out.printf("Not a linger time:%s%n", av);
+                    return;
+                }
+                state = 0;
+            } else if (state == 7) {
+                String[] parts = av.split(":", 2);
+                if (parts[0].equalsIgnoreCase("once")) {
+                    config.deliveryStrategy = new DeliveryStrategy.EncodeOnce();
+                } else if (parts[0].equalsIgnoreCase("per-call")) {
+                    config.deliveryStrategy = new DeliveryStrategy.PerCall();
+                } else if (parts[0].equalsIgnoreCase("compress")) {
+                    int minLength = 1024;
+                    if (parts.length > 1) {
+                        try {
+                            minLength = Integer.parseInt(parts[1]);
+                        } catch (NumberFormatException nfe) {
+                            System.out.printf("Not a compression threshold:%s%n", av);
+                            return;
+                        }
+                    }
+                    config.deliveryStrategy = new DeliveryStrategy.Compress(minLength);
+                } else {
+                    System.out.printf("Unknown delivery strategy:%s%n", av);
+                    return;
+                }
+                state = 0;
+            } else if (state == 8) {
+                try {
+                    config.historySize = Integer.parseInt(av);
+                    if (config.historySize <= 0)
+                        throw new NumberFormatException(av);
+                } catch (NumberFormatException nfe) {
+                    System.out.printf("Not a history size:%s%n", av);
+                    return;
+                }
+                state = 0;
+            } else if (state == 9) {
+                config.logDirectory = av;
+                state = 0;
+            } else if (state == 10) {
+                try {
+                    // A segment is mapped whole, so it must fit in an int.
+                    int mb = Integer.parseInt(av);
+                    if (mb <= 0 || mb > (Integer.MAX_VALUE >> 20))
+                        throw new NumberFormatException(av);
+                    config.segmentBytes = mb << 20;
+                } catch (NumberFormatException nfe) {
+                    System.out.printf("Not a segment size (1-%d MB):%s%n",
+                            Integer.MAX_VALUE >> 20, av);
+                    return;
+                }
+                state = 0;
+            } else if (state == 11) {
+                try {
+                    config.retentionBytes = Long.parseLong(av) << 20;
+                } catch (NumberFormatException nfe) {
+                    System.out.printf("Not a log size:%s%n", av);
+                    return;
+                }
+                state = 0;
+            } else if (state == 12) {
+                try {
+                    config.retentionMillis = Long.parseLong(av) * 3600 * 1000;
+                } catch (NumberFormatException nfe) {
+                    System.out.printf("Not a log age:%s%n", av);
+                    return;
+                }
+                state = 0;
+            } else if (state == 13) {
+                try {
+                    long seconds = Long.parseLong(av);
+                    if (seconds <= 0 || seconds > Long.MAX_VALUE / 1000)
+                        throw new NumberFormatException(av);
+                    config.leaseMillis = seconds * 1000;
+                } catch (NumberFormatException nfe) {
+                    System.out.printf("Not a lease time:%s%n", av);
+                    return;
+                }
+                state = 0;
+            } else if (state == 14) {
+                try {
+                    config.maxFailures = Integer.parseInt(av);
+                } catch (NumberFormatException nfe) {
+                    System.out.printf("Not a failure count:%s%n", av);
+                    return;
+                }
+                state = 0;
+            } else if (state == 15) {
+                try {
+                    config.connectTimeoutMillis = Integer.parseInt(av);
+                } catch (NumberFormatException nfe) {
+                    System.out.printf("Not a connect timeout:%s%n", av);
+                    return;
+                }
+                state = 0;
+            } else if (state == 16) {
+                try {
+                    config.readTimeoutMillis = Integer.parseInt(av);
+                } catch (NumberFormatException nfe) {
+                    System.out.printf("Not a read timeout:%s%n", av);
+                    return;
+                }
+                state = 0;
+            } else if (state == 17) {
+                config.clusterName = av;
+                state = 0;
+            } else if (state == 18) {
+                if (av.equalsIgnoreCase("rmi")) {
+                    config.nioPort = -1;
+                } else if (av.toLowerCase().startsWith("nio")) {
+                    try {
+                        config.nioPort = av.startsWith(":", 3)
+                                ? Integer.parseInt(av.substring(4)) : 0;
+                    } catch (NumberFormatException nfe) {
+                        System.out.printf("Not a port:%s%n", av);
+                        return;
+                    }
+                } else {
+                    System.out.printf("Unknown transport:%s%n", av);
+                    return;
+                }
+                state = 0;
+            } else if (state == 19) {
+                if (!parseVerbosity(av, config)) {
+                    System.out.printf("Unknown log level:%s%n", av);
+                    return;
+                }
+                state = 0;
+            } else if (state == 20) {
+                String[] parts = av.split(":", 2);
+                try {
+                    // 0 turns the limit off.
+                    config.rateLimit = Double.parseDouble(parts[0]);
+                    if (!(config.rateLimit >= 0) || Double.isInfinite(config.rateLimit))
+                        throw new NumberFormatException(av);
+                    if (parts.length > 1)
+                        config.rateBurst = Integer.parseInt(parts[1]);
+                    if (config.rateBurst <= 0)
+                        throw new NumberFormatException(av);
+                } catch (NumberFormatException nfe) {
+                    System.out.printf("Not a rate limit:%s%n", av);
+                    return;
+                }
+                state = 0;
+            } else if (state == 21) {
+                String[] parts = av.split(":", 2);
+                if (parts[0].equalsIgnoreCase("reject")) {
+                    config.ratePolicy = RateLimiter.Policy.REJECT;
+                } else if (parts[0].equalsIgnoreCase("delay")) {
+                    config.ratePolicy = RateLimiter.Policy.DELAY;
+                } else {
+                    System.out.printf("Unknown rate limit policy:%s%n", av);
+                    return;
+                }
+                if (parts.length > 1) {
+                    try {
+                        config.rateMaxDelayMillis = Long.parseLong(parts[1]);
+                    } catch (NumberFormatException nfe) {
+                        System.out.printf("Not a delay:%s%n", av);
+                        return;
+                    }
+                }
+                state = 0;
+            } else if (state == 22) {
+                try {
+                    config.presenceMillis = Long.parseLong(av);
+                    if (config.presenceMillis <= 0)
+                        throw new NumberFormatException(av);
+                } catch (NumberFormatException nfe) {
+                    System.out.printf("Not a presence interval:%s%n", av);
+                    return;
+                }
+                state = 0;
             }
         }
 
+        // Calls to clients that have died should fail fast.
+
+        RMISocketFactory.setSocketFactory(new TimeoutSocketFactory(
+                config.connectTimeoutMillis, config.readTimeoutMillis));
+
         // This may or may not be required
         // if (System.getSecurityManager() == null)
         //   System.setSecurityManager(new SecurityManager());
 
-        ChatServer cs = new ChatServer(serverName);
+        ChatServer cs = new ChatServer(serverName, config);
         cs.readLoop();
         cs.unbind();
         System.exit(0);
@@ -16,21 +16,169 @@ public interface ChatServerInterface
   extends
     java.rmi.Remote
 {
+  /**
+   * The name of the room that clients are in when they register.
+   */
+  public static final String LOBBY = "lobby";
+
   /**
    * Used by ChatClient instances to inject a text message to be
-   * distributed to registered ChatClientNotificationInterfaces.
+   * distributed to registered ChatClientNotificationInterfaces. The
+   * message goes to the lobby. Callers of this method share one
+   * rate limit.
    * @param msg The message.
+   * @throws RateLimitedException If the callers together send faster
+   *         than the server allows; the message was not accepted.
    */
   public void say (String msg)
     throws java.rmi.RemoteException;
 
+  /**
+   * Used by ChatClient instances to inject a text message to be
+   * distributed to the other clients in the same room.
+   * @param rel The listener the client registered with.
+   * @param msg The message.
+   * @return The sequence number the message was given in the room, or
+   *         0 if msg is null.
+   * @throws RateLimitedException If the client sends faster than the
+   *         server allows; the message was not accepted.
+   */
+  public long say (RemoteEventListener rel, String msg)
+    throws java.rmi.RemoteException;
+
+  /**
+   * Like say (RemoteEventListener, String) for several messages at once,
+   * so that a client can send what the user has typed meanwhile in one
+   * round trip. The messages are distributed in the order given.
+   * @param rel  The listener the client registered with.
+   * @param msgs The messages.
+   * @return The sequence number of each message, 0 for a null one.
+   *         If the client sends faster than the server allows, or a
+   *         message cannot be numbered, the messages from the first one
+   *         refused on get -1 and were not accepted.
+   * @throws RateLimitedException If not even the first message is
+   *         accepted.
+   */
+  public long [] sayAll (RemoteEventListener rel, String [] msgs)
+    throws java.rmi.RemoteException;
+
+  /**
+   * Stops the server from sending a client the messages of another
+   * client on the same server. The block follows the other client
+   * when it changes its name, and ends when it unregisters. A message
+   * left out still takes up its sequence number, as a null entry in a
+   * ChatBatchNotification.
+   * @param rel  The listener the client registered with.
+   * @param name The name of the client to block.
+   * @return False if either client is not registered with the server.
+   */
+  public boolean block (RemoteEventListener rel, String name)
+    throws java.rmi.RemoteException;
+
+  /**
+   * Has the server send a client the messages of a client it blocked
+   * again.
+   * @param rel  The listener the client registered with.
+   * @param name The name of the blocked client.
+   * @return False if the client was not blocked.
+   */
+  public boolean unblock (RemoteEventListener rel, String name)
+    throws java.rmi.RemoteException;
+
+  /**
+   * Tells the server whether the user of a client is at the keyboard.
+   * A client only needs to call this when that changes; the server
+   * passes it on to the clients that watch presence, together with
+   * the other changes made meanwhile. A client is ACTIVE when it
+   * registers and OFFLINE once it is gone.
+   * @param rel   The listener the client registered with.
+   * @param state PresenceEvent.ACTIVE or PresenceEvent.AWAY.
+   * @return False if the client is not registered or the state is not
+   *         ACTIVE or AWAY.
+   */
+  public boolean setPresence (RemoteEventListener rel, int state)
+    throws java.rmi.RemoteException;
+
+  /**
+   * Starts or stops sending a client the presence of the clients on the
+   * server. While it watches, the client is sent a PresenceEvent with
+   * the clients whose presence changed, now and then, and only when
+   * something changed.
+   * @param rel   The listener the client registered with.
+   * @param watch True to start watching, false to stop.
+   * @return When starting, the presence of every client on the server;
+   *         otherwise, or if the client is not registered, null.
+   */
+  public PresenceEvent watchPresence (RemoteEventListener rel, boolean watch)
+    throws java.rmi.RemoteException;
+
   /**
    * Returns the server's user-friendly name.
    * @return The server's user-friendly name.
    */
   public String getName () throws java.rmi.RemoteException;
+
+  /**
+   * Returns how busy the server is, so that a client can pick the least
+   * loaded server of a cluster.
+   * @return The number of clients registered with the server.
+   */
+  public int getLoad () throws java.rmi.RemoteException;
+
+  /**
+   * Returns where a client can connect to the server with the NIO
+   * transport (see NioTransport) instead of calling it through RMI.
+   * @return The address as host:port, or null if the server only
+   *         offers RMI.
+   */
+  public String getTransportAddress () throws java.rmi.RemoteException;
   public boolean containsClientName(String username) throws  RemoteException;
 
+  /**
+   * Returns the messages distributed after a given one, so that a client
+   * that reconnects or joins late can catch up in a single call. The
+   * server only keeps a bounded number of recent messages, so older
+   * ones may be missing.
+   * @param seq The sequence number of the last message the client has
+   *            seen, or 0 for all messages the server still has.
+   * @return The newer messages as one batch, or null if there are none.
+   */
+  public ChatBatchNotification getHistory (long seq)
+    throws java.rmi.RemoteException;
+
+  /**
+   * Returns the messages distributed in a room after a given one, like
+   * getHistory (long) does for the lobby.
+   * @param room The name of the room.
+   * @param seq  The sequence number of the last message the client has
+   *             seen in the room, or 0.
+   * @return The newer messages as one batch, or null if there are none
+   *         or the room does not exist.
+   */
+  public ChatBatchNotification getHistory (String room, long seq)
+    throws java.rmi.RemoteException;
+
+  /**
+   * Moves a registered client to another room, which is created if it
+   * does not exist. The client leaves the room it was in; a client is
+   * in one room at a time. Leaving a room is done by joining LOBBY.
+   * @param rel  The listener the client registered with.
+   * @param room The name of the room: 1 to 32 letters, digits, '-'
+   *             or '_'.
+   * @return The id of the room, which is the event id (see
+   *         RemoteEvent.getID ()) of all notifications from it, or -1
+   *         if the client is not registered or the name is not valid.
+   */
+  public long join (RemoteEventListener rel, String room)
+    throws java.rmi.RemoteException;
+
+  /**
+   * Returns the names of the rooms on the server.
+   * @return The room names, sorted.
+   */
+  public String [] listRooms ()
+    throws java.rmi.RemoteException;
+
   /**
    * Used by ChatClient instances to register themselves as receivers of
    * remote notifications.
@@ -40,6 +188,59 @@ public interface ChatServerInterface
   public void register (RemoteEventListener rel)
     throws java.rmi.RemoteException;
 
+  /**
+   * Used by ChatClient instances to register themselves as receivers of
+   * remote notifications under a given name. The server keeps the name
+   * and never has to call the client to ask for it. If the name is
+   * taken, the client is given a variant of it.
+   *
+   * The registration is leased: the client must call renew () before
+   * the lease runs out, or it is removed. A client is also removed when
+   * several notifications to it have failed in a row.
+   * @param rel  An object that implements the RemoteEventListener
+   *             interface.
+   * @param name The name the client wants to use in the chat.
+   * @return The lease, which holds the name the client was given.
+   */
+  public ChatLease register (RemoteEventListener rel, String name)
+    throws java.rmi.RemoteException;
+
+  /**
+   * Renews the lease of a registered client.
+   * @param rel The listener the client registered with.
+   * @return The lease duration in milliseconds from now, or 0 if the
+   *         client is not registered (anymore) and has to register again.
+   */
+  public long renew (RemoteEventListener rel)
+    throws java.rmi.RemoteException;
+
+  /**
+   * Changes the name of a registered client. If the name is taken, the
+   * client is given a variant of it. The change is announced to the
+   * client's room with a MemberEvent.
+   * @param rel  The listener the client registered with.
+   * @param name The new name the client wants to use.
+   * @return The name the client was given, or null if it is not
+   *         registered.
+   */
+  public String rename (RemoteEventListener rel, String name)
+    throws java.rmi.RemoteException;
+
+  /**
+   * Returns the names of the registered clients.
+   * @return The client names, sorted.
+   */
+  public String [] listUsers ()
+    throws java.rmi.RemoteException;
+
+  /**
+   * Returns the names of the clients in a room.
+   * @param room The name of the room.
+   * @return The client names, sorted; none if the room does not exist.
+   */
+  public String [] listUsers (String room)
+    throws java.rmi.RemoteException;
+
   /**
    * Used by ChatClient instances to unregister themselves as receivers of
    * remote notifications.
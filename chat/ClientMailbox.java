@@ -0,0 +1,562 @@
+// ClientMailbox.java
+// 2026-10-18 First version
+//
+// The outbound queue of a single registered client.
+
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ClientMailbox holds the notifications that are waiting to be sent
+ * to one RemoteEventListener. The ChatServer distribution thread places
+ * notifications in the mailbox with offer(), and the mailbox drains
+ * itself on a thread from a shared executor, so each client is served
+ * in order and independently of all other clients.
+ *
+ * Consecutive pending notifications are sent together in one
+ * ChatBatchNotification of at most maxBatch messages. A drain can be
+ * delayed by up to lingerMillis after the first notification arrives,
+ * to give a burst of messages the chance to fill a batch.
+ *
+ * The mailbox is bounded. When a client falls behind so that more than
+ * highWaterMark notifications are pending, the overflow policy decides
+ * what happens.
+ *
+ * A listener that paces what it is sent (see FlowControl) is only called
+ * when it is ready. Until then the notifications wait here, so the
+ * high-water mark and the overflow policy apply to them.
+ *
+ * A client that watches presence also gets PresenceEvents. At most one
+ * is pending: a new one is joined with it, and it is sent once the
+ * messages before it are.
+ *
+ * The client can block other clients. Their messages stay in the
+ * mailbox like any other, so that they keep their place in the
+ * sequence, but only their sequence numbers are sent.
+ *
+ * The mailbox also records when the client's lease expires and how many
+ * remote calls in a row have failed, so that the server can remove
+ * clients that have died.
+ */
+public class ClientMailbox implements Runnable
+{
+    /**
+     * What to do when a new notification arrives and the mailbox is
+     * already at its high-water mark.
+     */
+    public enum OverflowPolicy {
+        /** Discard the oldest pending notification. */
+        DROP_OLDEST,
+        /** Replace the whole backlog with a single summary notification. */
+        COALESCE,
+        /** Refuse the notification and have the client removed. */
+        EVICT
+    }
+
+    /**
+     * A listener that is local to the server and takes events faster
+     * than its client can, such as a NIO connection. The mailbox asks it
+     * before every call whether it is ready for another event, and
+     * keeps the notifications itself while it is not.
+     */
+    public interface FlowControl {
+        /**
+         * Tells whether the listener can take another event now. If it
+         * cannot, it runs resume once it can.
+         *
+         * @param resume What to run when the listener is ready again.
+         * @return True if the listener is ready.
+         */
+        boolean ready(Runnable resume);
+    }
+
+    /**
+     * The remote listener that this mailbox delivers to.
+     */
+    protected final RemoteEventListener listener;
+
+    /**
+     * The name of the client, as given out by the UserDirectory.
+     */
+    protected volatile String name = null;
+
+    /**
+     * The id of the client, which the server puts on the messages it
+     * says (see ChatNotification.getSenderId()). 0 for a mailbox that
+     * does not belong to a client.
+     */
+    protected volatile long clientId = 0;
+
+    /**
+     * The ids of the clients whose messages are not sent to this one.
+     */
+    protected final Set<Long> blocked =
+            ConcurrentHashMap.newKeySet();
+
+    /**
+     * When the client may send again at the steady rate, for the
+     * server's RateLimiter; 0 until the client sends.
+     */
+    protected final AtomicLong sendTime = new AtomicLong();
+
+    /**
+     * The room the client is in. Changed by the server when the client
+     * joins another room, with the mailbox locked.
+     */
+    protected volatile ChatRoom room = null;
+
+    /**
+     * The pending notifications, oldest first. Guarded by this.
+     */
+    protected final ArrayDeque<ChatNotification> pending =
+            new ArrayDeque<ChatNotification>();
+
+    /**
+     * The presence changes waiting to be sent, or null. Guarded by this.
+     */
+    protected PresenceEvent presence = null;
+
+    /**
+     * The maximum number of pending notifications.
+     */
+    protected final int highWaterMark;
+
+    /**
+     * The policy applied when the high-water mark is exceeded.
+     */
+    protected final OverflowPolicy policy;
+
+    /**
+     * The maximum number of messages sent in one remote call.
+     */
+    protected final int maxBatch;
+
+    /**
+     * How long a drain is delayed to let a batch fill up, in milliseconds.
+     */
+    protected final long lingerMillis;
+
+    /**
+     * The executor on which the mailbox drains itself.
+     */
+    protected final ScheduledExecutorService executor;
+
+    /**
+     * True while a drain task is scheduled or running. Guarded by this.
+     */
+    protected boolean scheduled = false;
+
+    /**
+     * Runs the drain task again once a FlowControl listener is ready.
+     * The drain stays scheduled while it waits, so offer () does not
+     * schedule another.
+     */
+    protected final Runnable resume = new Runnable() {
+        @Override
+        public void run() {
+            executor.execute(ClientMailbox.this);
+        }
+    };
+
+    /**
+     * True once the mailbox has been closed. Guarded by this.
+     */
+    protected boolean closed = false;
+
+    /**
+     * When the client's lease runs out, in System.currentTimeMillis()
+     * time. Long.MAX_VALUE for a client that holds no lease.
+     */
+    protected volatile long leaseExpiry = Long.MAX_VALUE;
+
+    /**
+     * Statistics, guarded by this.
+     */
+    protected long delivered = 0;
+    protected long dropped = 0;
+    protected long failures = 0;
+    protected long calls = 0;
+    protected long filtered = 0;
+    protected long limited = 0;
+
+    /**
+     * The number of remote calls that have failed since the last one
+     * that succeeded. Guarded by this.
+     */
+    protected int consecutiveFailures = 0;
+
+    /**
+     * Creates a new ClientMailbox.
+     *
+     * @param listener      The listener to deliver to.
+     * @param highWaterMark The maximum number of pending notifications.
+     * @param policy        What to do when the mailbox overflows.
+     * @param maxBatch      The maximum number of messages per remote call.
+     * @param lingerMillis  How long to wait for a batch to fill up.
+     * @param executor      The executor used to drain the mailbox.
+     */
+    public ClientMailbox(RemoteEventListener listener,
+                         int highWaterMark,
+                         OverflowPolicy policy,
+                         int maxBatch,
+                         long lingerMillis,
+                         ScheduledExecutorService executor) {
+        this.listener = listener;
+        this.highWaterMark = Math.max(1, highWaterMark);
+        this.policy = policy;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.lingerMillis = Math.max(0, lingerMillis);
+        this.executor = executor;
+    }
+
+    public RemoteEventListener getListener() {
+        return listener;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public long getClientId() {
+        return clientId;
+    }
+
+    public void setClientId(long clientId) {
+        this.clientId = clientId;
+    }
+
+    /**
+     * Stops sending this client the messages of another one.
+     *
+     * @param senderId The id of the client to block.
+     * @return False if it was already blocked.
+     */
+    public boolean block(long senderId) {
+        return blocked.add(senderId);
+    }
+
+    /**
+     * Sends this client the messages of a blocked client again.
+     *
+     * @param senderId The id of the client to unblock.
+     * @return False if it was not blocked.
+     */
+    public boolean unblock(long senderId) {
+        return blocked.remove(senderId);
+    }
+
+    public AtomicLong getSendTime() {
+        return sendTime;
+    }
+
+    /**
+     * Counts a message of the client that was refused by the rate limit.
+     */
+    public synchronized void countLimited() {
+        limited++;
+    }
+
+    public ChatRoom getRoom() {
+        return room;
+    }
+
+    public void setRoom(ChatRoom room) {
+        this.room = room;
+    }
+
+    /**
+     * Extends the client's lease.
+     *
+     * @param expiry When the lease now runs out.
+     */
+    public void renewLease(long expiry) {
+        leaseExpiry = expiry;
+    }
+
+    /**
+     * Tells whether the client's lease has run out.
+     *
+     * @param now The current time.
+     * @return True if the lease has expired.
+     */
+    public boolean isExpired(long now) {
+        return now > leaseExpiry;
+    }
+
+    /**
+     * Adds a notification to the mailbox and makes sure that a drain
+     * task is scheduled.
+     *
+     * @param note The notification to deliver.
+     * @return False if the client should be evicted, true otherwise.
+     */
+    public boolean offer(ChatNotification note) {
+        boolean schedule = false;
+
+        synchronized (this) {
+            if (closed)
+                return true;
+
+            if (pending.size() >= highWaterMark) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        pending.removeFirst();
+                        dropped++;
+                        break;
+                    case COALESCE:
+                        coalesce();
+                        break;
+                    case EVICT:
+                        dropped += pending.size() + 1;
+                        pending.clear();
+                        closed = true;
+                        return false;
+                }
+            }
+
+            pending.addLast(note);
+
+            if (!scheduled) {
+                scheduled = true;
+                schedule = true;
+            }
+        }
+
+        if (schedule)
+            scheduleDrain();
+
+        return true;
+    }
+
+    /**
+     * Adds presence changes to the mailbox, joined with those that are
+     * still waiting to be sent, and makes sure that a drain task is
+     * scheduled.
+     *
+     * @param event The changes.
+     */
+    public void offerPresence(PresenceEvent event) {
+        synchronized (this) {
+            if (closed)
+                return;
+            presence = (presence == null) ? event : presence.merge(event);
+            if (scheduled)
+                return;
+            scheduled = true;
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * Schedules the drain task, after the linger time if there is one.
+     */
+    protected void scheduleDrain() {
+        if (lingerMillis > 0)
+            executor.schedule(this, lingerMillis, TimeUnit.MILLISECONDS);
+        else
+            executor.execute(this);
+    }
+
+    /**
+     * Replaces the pending notifications with one system notification
+     * that tells the client how many messages it missed. The summary
+     * carries the sequence number of the last message it replaces.
+     * Must be called with the lock held.
+     */
+    protected void coalesce() {
+        ChatNotification last = pending.peekLast();
+        int skipped = pending.size();
+
+        pending.clear();
+        dropped += skipped;
+
+        String text = ChatNotification.textBuilder()
+                .append("System: ").append(skipped)
+                .append(" messages skipped, you are falling behind").toString();
+        ChatNotification summary = new ChatNotification(
+                last.getSource(), text, (int) last.getSequenceNumber());
+        summary.eventID = last.getID();
+        summary.type = ChatNotification.SYSTEM;
+        pending.addLast(summary);
+    }
+
+    /**
+     * Closes the mailbox. Pending notifications are discarded and
+     * further offers are ignored.
+     */
+    public synchronized void close() {
+        closed = true;
+        pending.clear();
+        presence = null;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns the number of notifications waiting to be sent.
+     *
+     * @return The current queue depth.
+     */
+    public synchronized int depth() {
+        return pending.size();
+    }
+
+    public synchronized long getDelivered() {
+        return delivered;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    public synchronized long getFiltered() {
+        return filtered;
+    }
+
+    public synchronized long getLimited() {
+        return limited;
+    }
+
+    public synchronized long getCalls() {
+        return calls;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Removes the next run of consecutively numbered notifications of
+     * the same room from the mailbox, at most maxBatch of them. Must be
+     * called with the lock held.
+     *
+     * @return The notifications, or null if the mailbox is empty.
+     */
+    protected ChatNotification[] takeBatch() {
+        ChatNotification first = pending.peekFirst();
+        if (first == null)
+            return null;
+
+        int n = 1;
+        long next = first.getSequenceNumber() + 1;
+        for (ChatNotification note : pending) {
+            if (note == first)
+                continue;
+            if (n == maxBatch || note.getSequenceNumber() != next
+                    || note.getID() != first.getID())
+                break;
+            n++;
+            next++;
+        }
+
+        ChatNotification[] batch = new ChatNotification[n];
+        for (int i = 0; i < n; i++)
+            batch[i] = pending.removeFirst();
+        return batch;
+    }
+
+    /**
+     * Builds the event that carries a batch: the notification itself
+     * when it is alone, otherwise a ChatBatchNotification. The messages
+     * of blocked clients are left out of it, which always makes it a
+     * ChatBatchNotification.
+     *
+     * @param batch The notifications to send.
+     * @return The event to pass to the listener.
+     */
+    protected RemoteEvent toEvent(ChatNotification[] batch) {
+        ChatNotification[] sent = batch;
+        if (!blocked.isEmpty()) {
+            int skipped = 0;
+            for (int i = 0; i < batch.length; i++) {
+                long sender = batch[i].getSenderId();
+                if (sender != 0 && blocked.contains(sender)) {
+                    if (sent == batch)
+                        sent = batch.clone();
+                    sent[i] = null;
+                    skipped++;
+                }
+            }
+            if (skipped > 0) {
+                synchronized (this) {
+                    filtered += skipped;
+                }
+                return new ChatBatchNotification(batch[0].getSource(),
+                        batch[0].getID(), batch[0].getSequenceNumber(), sent);
+            }
+        }
+
+        if (batch.length == 1)
+            return batch[0];
+
+        return new ChatBatchNotification(batch[0].getSource(), batch);
+    }
+
+    /**
+     * The drain task. Sends pending notifications in batches until the
+     * mailbox is empty, then the pending presence changes. The remote
+     * call is made without holding the lock so that offer() never waits
+     * for the network. If the listener is not ready, the task ends with
+     * the mailbox still scheduled, and the listener runs it again.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            if (listener instanceof FlowControl
+                    && !((FlowControl) listener).ready(resume))
+                return;
+
+            ChatNotification[] batch;
+            RemoteEvent event;
+
+            synchronized (this) {
+                batch = takeBatch();
+                if (batch != null) {
+                    event = null;
+                } else if (presence != null) {
+                    event = presence;
+                    presence = null;
+                } else {
+                    scheduled = false;
+                    return;
+                }
+            }
+
+            boolean ok = true;
+            try {
+                listener.notify((batch != null) ? toEvent(batch) : event);
+            } catch (RemoteException rex) {
+                ok = false;
+            } catch (RuntimeException rex) {
+                ok = false;
+            }
+
+            synchronized (this) {
+                calls++;
+                if (ok) {
+                    if (batch != null)
+                        delivered += batch.length;
+                    consecutiveFailures = 0;
+                } else {
+                    failures++;
+                    consecutiveFailures++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+// ConsoleLog.java
+// 2026-10-18 First version
+//
+// Asynchronous logging to the server console.
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ConsoleLog writes the server's diagnostics to the console on a thread
+ * of its own, so that the threads that accept messages and clients never
+ * wait for the console.
+ *
+ * A log call only fills in a slot of a ring buffer that is allocated
+ * once: it stores the parts of the line, and the line is put together
+ * by the log thread. The log thread takes everything that has queued
+ * up and writes it with a single print and flush. If the console cannot
+ * keep up and the buffer is full, lines are dropped rather than making
+ * the caller wait, and the number dropped is reported.
+ *
+ * What is logged depends on the verbosity: QUIET only logs problems,
+ * INFO also logs clients, rooms and peers coming and going, and
+ * MESSAGES also logs the messages. With a sample rate of n, only the
+ * messages whose sequence number is a multiple of n are logged.
+ */
+public class ConsoleLog implements Runnable
+{
+    /**
+     * How much is logged. Each level includes the ones before it.
+     */
+    public enum Verbosity {
+        /** Only problems. */
+        QUIET,
+        /** Also clients, rooms and peers coming and going. */
+        INFO,
+        /** Also every message, or a sample of them. */
+        MESSAGES
+    }
+
+    /**
+     * The number of slots in the ring buffer. A power of two.
+     */
+    protected static final int CAPACITY = 8192;
+
+    /**
+     * How long the log thread sleeps, in nanoseconds, when it has
+     * nothing to do and no caller wakes it.
+     */
+    protected static final long IDLE_NANOS = 100 * 1000 * 1000;
+
+    /**
+     * One slot of the ring buffer. A slot is ready for the log thread
+     * when published is the number of the line it holds. For a message,
+     * text is null and detail is the ChatNotification.
+     */
+    protected static final class Entry {
+        volatile long published = -1;
+        String room;
+        long seq;
+        String text;
+        Object detail;
+    }
+
+    protected final Entry[] ring = new Entry[CAPACITY];
+
+    /**
+     * The number of the next line to be claimed by a caller.
+     */
+    protected final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The number of the next line the log thread writes. Slots before
+     * it are free. Only changed by the log thread.
+     */
+    protected volatile long head = 0;
+
+    /**
+     * Lines dropped because the ring buffer was full, not yet reported.
+     */
+    protected final AtomicLong dropped = new AtomicLong();
+
+    protected volatile Verbosity verbosity;
+    protected volatile int sampleEvery;
+
+    /**
+     * Set by the log thread before it sleeps, so that a caller knows to
+     * wake it.
+     */
+    protected volatile boolean waiting = false;
+
+    protected volatile boolean closed = false;
+
+    protected final Thread thread;
+
+    /**
+     * Creates a ConsoleLog and starts its thread.
+     *
+     * @param verbosity   How much to log.
+     * @param sampleEvery Log one message in this many; 1 logs them all.
+     */
+    public ConsoleLog(Verbosity verbosity, int sampleEvery) {
+        for (int i = 0; i < ring.length; i++)
+            ring[i] = new Entry();
+        this.verbosity = verbosity;
+        this.sampleEvery = Math.max(1, sampleEvery);
+
+        thread = new Thread(this, "console-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Verbosity getVerbosity() {
+        return verbosity;
+    }
+
+    public void setVerbosity(Verbosity verbosity) {
+        this.verbosity = verbosity;
+    }
+
+    public int getSampleEvery() {
+        return sampleEvery;
+    }
+
+    public void setSampleEvery(int sampleEvery) {
+        this.sampleEvery = Math.max(1, sampleEvery);
+    }
+
+    /**
+     * Logs a problem. Logged at every verbosity.
+     *
+     * @param text   The start of the line.
+     * @param detail Appended to the text by the log thread, or null.
+     */
+    public void warn(String text, Object detail) {
+        append(null, 0, text, detail);
+    }
+
+    /**
+     * Logs something coming or going, at verbosity INFO and above.
+     *
+     * @param text   The start of the line.
+     * @param detail Appended to the text by the log thread, or null;
+     *               its toString() is called on the log thread.
+     */
+    public void info(String text, Object detail) {
+        if (verbosity != Verbosity.QUIET)
+            append(null, 0, text, detail);
+    }
+
+    /**
+     * Logs a message that was added to a room, at verbosity MESSAGES,
+     * if it is in the sample. The text of the message is only asked
+     * for by the log thread, so a text that is made when it is first
+     * asked for, or has to be inflated, is not made by the caller.
+     *
+     * @param room The name of the room, or null for the lobby.
+     * @param note The message, numbered.
+     */
+    public void message(String room, ChatNotification note) {
+        long seq = note.getSequenceNumber();
+        if (verbosity == Verbosity.MESSAGES && seq % sampleEvery == 0)
+            append(room, seq, null, note);
+    }
+
+    /**
+     * Claims a slot, fills it in and publishes it. Never blocks; if the
+     * ring buffer is full, the line is counted as dropped.
+     */
+    protected void append(String room, long seq, String text, Object detail) {
+        long n;
+        do {
+            n = tail.get();
+            if (n - head >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(n, n + 1));
+
+        Entry e = ring[(int) n & (CAPACITY - 1)];
+        e.room = room;
+        e.seq = seq;
+        e.text = text;
+        e.detail = detail;
+        e.published = n;
+
+        if (waiting) {
+            waiting = false;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Writes what is left and stops the log thread.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(5000);
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The log thread. Formats the lines that are ready and writes them
+     * at once, then sleeps until there are more.
+     */
+    @Override
+    public void run() {
+        StringBuilder out = new StringBuilder();
+        while (true) {
+            boolean stopping = closed;
+            drain(out);
+            long lost = dropped.getAndSet(0);
+            if (lost > 0)
+                out.append("[").append(lost).append(" log lines dropped]\n");
+            if (out.length() > 0) {
+                System.out.print(out);
+                System.out.flush();
+                out.setLength(0);
+                continue;
+            }
+            if (stopping)
+                return;
+
+            waiting = true;
+            if (ring[(int) head & (CAPACITY - 1)].published != head && !closed)
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            waiting = false;
+        }
+    }
+
+    /**
+     * Formats the published lines, in order, and frees their slots. At
+     * most one buffer full is taken, so that a steady stream of lines is
+     * still written in pieces.
+     */
+    protected void drain(StringBuilder out) {
+        long next = head;
+        for (int i = 0; i < CAPACITY; i++) {
+            Entry e = ring[(int) next & (CAPACITY - 1)];
+            if (e.published != next)
+                break;
+            if (e.text == null) {
+                if (e.room != null)
+                    out.append(e.room).append(' ');
+                out.append("MSG#").append(e.seq).append(':')
+                        .append(((ChatNotification) e.detail).getText());
+            } else {
+                out.append(e.text);
+                if (e.detail != null)
+                    out.append(e.detail);
+            }
+            out.append('\n');
+            e.room = null;
+            e.text = null;
+            e.detail = null;
+            head = ++next;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+// DeliveryStrategy.java
+// 2026-10-18 First version
+
+/**
+ * A DeliveryStrategy decides how a ChatNotification is prepared before
+ * the ChatServer queues it for its clients. The distribution thread
+ * calls prepare () exactly once per message, however many clients the
+ * message is sent to.
+ */
+public interface DeliveryStrategy
+{
+  /**
+   * Prepares a notification for delivery to any number of clients.
+   * @param note The notification about to be queued for the clients.
+   */
+  public void prepare (ChatNotification note);
+
+  /**
+   * Leaves the notification as it is, so that it is encoded again in
+   * each remote call, once for every client.
+   */
+  public static class PerCall implements DeliveryStrategy
+  {
+    public void prepare (ChatNotification note) {
+    }
+
+    public String toString () {
+      return "per-call";
+    }
+  }
+
+  /**
+   * Encodes the notification once into an immutable byte buffer that
+   * every remote call then copies as it is.
+   */
+  public static class EncodeOnce implements DeliveryStrategy
+  {
+    public void prepare (ChatNotification note) {
+      note.encode ();
+    }
+
+    public String toString () {
+      return "encode-once";
+    }
+  }
+
+  /**
+   * Like EncodeOnce, but also deflates a text of at least a given length
+   * once, and every remote call then copies the compressed bytes. The
+   * clients only inflate a text when they show it.
+   */
+  public static class Compress implements DeliveryStrategy
+  {
+    /**
+     * The length in bytes from which a text is compressed.
+     */
+    protected final int minLength;
+
+    /**
+     * Creates a Compress strategy.
+     * @param minLength The length in bytes of the UTF-8 text from which
+     *                  it is compressed.
+     */
+    public Compress (int minLength) {
+      this.minLength = minLength;
+    }
+
+    public void prepare (ChatNotification note) {
+      note.compress (minLength);
+    }
+
+    public String toString () {
+      return "compress:" + minLength;
+    }
+  }
+}
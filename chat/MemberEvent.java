@@ -0,0 +1,139 @@
+// MemberEvent.java
+// 2026-10-18 First version
+
+/**
+ * This class implements the notification that is sent to the ChatClients
+ * when the membership of a room changes: a client joins or leaves the
+ * chat, moves into or out of the room, or changes its name. The kind of change and the names involved are
+ * available as fields, so that clients do not have to parse the text.
+ * getText () still returns a readable announcement, so a MemberEvent can
+ * be shown like any other ChatNotification. The announcement is made
+ * from the kind and names when it is first asked for, and is not sent:
+ * the other end makes it again from the names.
+ */
+public class MemberEvent extends ChatNotification
+{
+  /**
+   * The kinds of membership change.
+   */
+  public static final int JOINED = 1;
+  public static final int LEFT = 2;
+  public static final int RENAMED = 3;
+  public static final int ENTERED = 4;
+  public static final int EXITED = 5;
+
+  /**
+   * The kind of change, one of JOINED, LEFT, RENAMED, ENTERED (moved
+   * into the room) or EXITED (moved out of the room).
+   */
+  protected int kind;
+
+  /**
+   * The name of the member (the new name, if it was changed).
+   */
+  protected String name;
+
+  /**
+   * The old name of the member if it was changed, otherwise null.
+   */
+  protected String oldName;
+
+  /**
+   * Creates a new MemberEvent instance. The sequence number is given to
+   * it when it is added to the server's message queue.
+   * @param source  The object from which this instance originates.
+   * @param kind    JOINED, LEFT, RENAMED, ENTERED or EXITED.
+   * @param name    The name of the member, or its new name.
+   * @param oldName The old name of a renamed member, otherwise null.
+   */
+  public MemberEvent (Object source, int kind, String name, String oldName) {
+    super (source, null, 0);
+    this.type = MEMBER;
+    this.kind = kind;
+    this.name = name;
+    this.oldName = oldName;
+  }
+
+  /**
+   * Creates an empty MemberEvent, to be filled in by readExternal ().
+   */
+  public MemberEvent () {
+  }
+
+  /**
+   * Returns the announcement of the change, made by the first call.
+   * @return The text message.
+   */
+  public String getText () {
+    String s = text;
+    if (s == null)
+      text = s = announcement (kind, name, oldName);
+    return s;
+  }
+
+  /**
+   * The announcement is not sent; see getText ().
+   */
+  protected byte [] getWireText () {
+    return null;
+  }
+
+  /**
+   * Returns the text announcing a membership change, made in the
+   * thread's reused builder (see textBuilder ()).
+   */
+  protected static String announcement (int kind, String name, String oldName) {
+    StringBuilder sb = textBuilder ();
+    switch (kind) {
+    case JOINED:
+      sb.append ("System: New chat member: ").append (name);
+      break;
+    case LEFT:
+      sb.append (name).append (" disconnected");
+      break;
+    case RENAMED:
+      sb.append ("Username changed from: ").append (oldName)
+	.append (" to: ").append (name);
+      break;
+    case ENTERED:
+      sb.append ("System: ").append (name).append (" entered the room");
+      break;
+    case EXITED:
+      sb.append ("System: ").append (name).append (" left the room");
+      break;
+    default:
+      return name;
+    }
+    return sb.toString ();
+  }
+
+  public int getKind () {
+    return kind;
+  }
+
+  public String getName () {
+    return name;
+  }
+
+  public String getOldName () {
+    return oldName;
+  }
+
+  public void writeExternal (java.io.ObjectOutput out)
+    throws java.io.IOException
+  {
+    super.writeExternal (out);
+    out.writeByte (kind);
+    writeBytes (out, encodeText (name));
+    writeBytes (out, encodeText (oldName));
+  }
+
+  public void readExternal (java.io.ObjectInput in)
+    throws java.io.IOException, ClassNotFoundException
+  {
+    super.readExternal (in);
+    kind = in.readByte ();
+    name = decodeText (readBytes (in));
+    oldName = decodeText (readBytes (in));
+  }
+}
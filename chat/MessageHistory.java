@@ -0,0 +1,76 @@
+// MessageHistory.java
+// 2026-10-18 First version
+//
+// A fixed-size ring buffer of the most recent chat messages.
+
+/**
+ * MessageHistory keeps the most recent notifications distributed by a
+ * ChatServer, so that clients that reconnect or join late can catch up
+ * with a single call. The buffer is allocated once with a fixed
+ * capacity; when it is full the oldest message is overwritten.
+ *
+ * Notifications must be added in sequence order without gaps, which is
+ * how the distribution thread hands them out. This lets the slot of a
+ * message be computed directly from its sequence number.
+ */
+public class MessageHistory
+{
+    /**
+     * The ring buffer. Slot (seq % capacity) holds message seq.
+     */
+    protected final ChatNotification[] ring;
+
+    /**
+     * The sequence number of the newest message, or 0 if none.
+     */
+    protected long newest = 0;
+
+    /**
+     * Creates a new MessageHistory.
+     *
+     * @param capacity The number of messages to keep.
+     */
+    public MessageHistory(int capacity) {
+        ring = new ChatNotification[Math.max(1, capacity)];
+    }
+
+    /**
+     * Returns the number of messages the history can hold.
+     *
+     * @return The capacity.
+     */
+    public int capacity() {
+        return ring.length;
+    }
+
+    /**
+     * Adds the next message to the history.
+     *
+     * @param note The message, numbered one higher than the previous one.
+     */
+    public synchronized void add(ChatNotification note) {
+        newest = note.getSequenceNumber();
+        ring[(int) (newest % ring.length)] = note;
+    }
+
+    /**
+     * Returns the messages with sequence numbers higher than the given
+     * one, oldest first. If some of them have already been overwritten,
+     * the result starts with the oldest message still kept.
+     *
+     * @param seq The sequence number of the last message already seen.
+     * @return The newer messages, possibly none.
+     */
+    public synchronized ChatNotification[] getSince(long seq) {
+        long oldest = Math.max(1, newest - ring.length + 1);
+        long first = Math.max(seq + 1, oldest);
+
+        if (first > newest)
+            return new ChatNotification[0];
+
+        ChatNotification[] notes = new ChatNotification[(int) (newest - first + 1)];
+        for (int i = 0; i < notes.length; i++)
+            notes[i] = ring[(int) ((first + i) % ring.length)];
+        return notes;
+    }
+}
@@ -0,0 +1,417 @@
+// MessageLog.java
+// 2026-10-18 First version
+//
+// An append-only, segmented, memory-mapped log of chat messages.
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * MessageLog stores the messages distributed by a ChatServer on disk, so
+ * that the history survives a restart of the server.
+ *
+ * The log is a directory of segment files. Each segment is named after
+ * the sequence number of its first message and is written through a
+ * MappedByteBuffer. A record is
+ *
+ *   int  length     the number of bytes after this field
+ *   long seq        the sequence number of the message
+ *   long time       when the message was logged, in milliseconds
+ *   byte text[]     the message text in UTF-8
+ *
+ * The length is written last, so a record that was torn by a crash
+ * reads as a zero length and marks the end of the log.
+ *
+ * Appending only places the message on a queue. A writer thread takes
+ * everything that has queued up, writes it, and then forces it to disk
+ * with a single call (group commit), so the caller never waits for the
+ * disk. When a segment is full, a new one is started, and old segments
+ * are deleted when the log grows beyond its size limit or they grow
+ * older than the age limit.
+ *
+ * Every INDEX_INTERVAL records, the position of a record is kept in a
+ * sparse in-memory index, so that a message can be found with two
+ * binary searches and a short scan.
+ */
+public class MessageLog implements Runnable
+{
+    /**
+     * The number of records between two entries in the sparse index.
+     */
+    protected static final int INDEX_INTERVAL = 64;
+
+    /**
+     * The size of the record header before the text.
+     */
+    protected static final int HEADER = 4 + 8 + 8;
+
+    /**
+     * One record read from the log.
+     */
+    public static class Record {
+        public final long seq;
+        public final long time;
+        public final byte[] text;
+
+        public Record(long seq, long time, byte[] text) {
+            this.seq = seq;
+            this.time = time;
+            this.text = text;
+        }
+    }
+
+    /**
+     * One segment file and its sparse index.
+     */
+    protected static class Segment {
+        final File file;
+        final long baseSeq;
+        MappedByteBuffer buffer;
+        int end = 0;
+        long lastSeq;
+        long lastTime = 0;
+        int count = 0;
+        long[] indexSeq = new long[16];
+        int[] indexPos = new int[16];
+        int indexSize = 0;
+
+        Segment(File file, long baseSeq) {
+            this.file = file;
+            this.baseSeq = baseSeq;
+            this.lastSeq = baseSeq - 1;
+        }
+
+        /**
+         * Notes a record that was found or written at position pos.
+         */
+        void noteRecord(long seq, long time, int pos) {
+            if (count % INDEX_INTERVAL == 0) {
+                if (indexSize == indexSeq.length) {
+                    indexSeq = java.util.Arrays.copyOf(indexSeq, indexSize * 2);
+                    indexPos = java.util.Arrays.copyOf(indexPos, indexSize * 2);
+                }
+                indexSeq[indexSize] = seq;
+                indexPos[indexSize] = pos;
+                indexSize++;
+            }
+            count++;
+            lastSeq = seq;
+            lastTime = time;
+        }
+
+        /**
+         * Returns the position from which to scan for a sequence number:
+         * that of the last index entry at or before it.
+         */
+        int seek(long seq) {
+            int lo = 0;
+            int hi = indexSize - 1;
+            int pos = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (indexSeq[mid] <= seq) {
+                    pos = indexPos[mid];
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return pos;
+        }
+    }
+
+    /**
+     * The directory that holds the segment files.
+     */
+    protected final File directory;
+
+    /**
+     * The size of a new segment, in bytes.
+     */
+    protected final int segmentBytes;
+
+    /**
+     * Old segments are deleted while the log is larger than this.
+     */
+    protected final long retentionBytes;
+
+    /**
+     * Old segments are deleted when they are older than this.
+     */
+    protected final long retentionMillis;
+
+    /**
+     * All segments by base sequence number. The last one is the active
+     * segment. Guarded by this.
+     */
+    protected final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+    /**
+     * Messages waiting for the writer thread.
+     */
+    protected final LinkedBlockingQueue<ChatNotification> queue =
+            new LinkedBlockingQueue<ChatNotification>();
+
+    /**
+     * The writer thread, once started.
+     */
+    protected Thread writer = null;
+
+    protected volatile boolean running = true;
+
+    /**
+     * Creates a MessageLog on a directory, which is created if needed.
+     * Call recover() before appending.
+     *
+     * @param directory       The directory of the segment files.
+     * @param segmentBytes    The size of a segment.
+     * @param retentionBytes  The total size above which segments are deleted.
+     * @param retentionMillis The age after which segments are deleted.
+     */
+    public MessageLog(File directory, int segmentBytes,
+                      long retentionBytes, long retentionMillis)
+            throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create log directory " + directory);
+    }
+
+    /**
+     * Scans the segments on disk, rebuilds their indexes, reopens the
+     * newest one for appending and starts the writer thread.
+     *
+     * @return The sequence number of the last message in the log, or 0.
+     */
+    public synchronized long recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (!name.endsWith(".log"))
+                    continue;
+                try {
+                    long base = Long.parseLong(name.substring(0, name.length() - 4));
+                    segments.put(base, new Segment(f, base));
+                } catch (NumberFormatException nfe) {
+                    // Not one of ours.
+                }
+            }
+        }
+
+        for (Segment seg : segments.values()) {
+            seg.buffer = map(seg.file, seg.file.length());
+            int pos = 0;
+            while (pos + HEADER <= seg.buffer.limit()) {
+                int len = seg.buffer.getInt(pos);
+                if (len <= 0 || pos + 4 + len > seg.buffer.limit())
+                    break;
+                seg.noteRecord(seg.buffer.getLong(pos + 4),
+                        seg.buffer.getLong(pos + 12), pos);
+                pos += 4 + len;
+            }
+            seg.end = pos;
+        }
+
+        writer = new Thread(this, "message-log");
+        writer.setDaemon(true);
+        writer.start();
+
+        return lastSeq();
+    }
+
+    /**
+     * Returns the sequence number of the last message in the log.
+     *
+     * @return The sequence number, or 0 if the log is empty.
+     */
+    public synchronized long lastSeq() {
+        for (Segment seg : segments.descendingMap().values())
+            if (seg.count > 0)
+                return seg.lastSeq;
+        return 0;
+    }
+
+    /**
+     * Queues a message for writing. Returns at once.
+     *
+     * @param note The message to log.
+     */
+    public void append(ChatNotification note) {
+        queue.offer(note);
+    }
+
+    /**
+     * Reads the messages from a given sequence number onwards.
+     *
+     * @param fromSeq The sequence number of the first message to read.
+     * @param max     The maximum number of messages to read.
+     * @return The messages found, in sequence order.
+     */
+    public synchronized List<Record> read(long fromSeq, int max) {
+        List<Record> records = new ArrayList<Record>();
+
+        Map.Entry<Long, Segment> entry = segments.floorEntry(fromSeq);
+        if (entry == null)
+            entry = segments.firstEntry();
+
+        while (entry != null && records.size() < max) {
+            Segment seg = entry.getValue();
+            int pos = seg.seek(fromSeq);
+            while (pos < seg.end && records.size() < max) {
+                int len = seg.buffer.getInt(pos);
+                long seq = seg.buffer.getLong(pos + 4);
+                if (seq >= fromSeq) {
+                    byte[] text = new byte[len - HEADER + 4];
+                    ByteBuffer in = seg.buffer.duplicate();
+                    in.position(pos + HEADER);
+                    in.get(text);
+                    records.add(new Record(seq, seg.buffer.getLong(pos + 12), text));
+                }
+                pos += 4 + len;
+            }
+            entry = segments.higherEntry(entry.getKey());
+        }
+
+        return records;
+    }
+
+    /**
+     * Stops the writer thread after it has written what is queued.
+     */
+    public void close() {
+        running = false;
+        if (writer != null) {
+            writer.interrupt();
+            try {
+                writer.join(5000);
+            } catch (InterruptedException iex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The writer thread. Waits for messages, writes all that have queued
+     * up, and forces them to disk in one go.
+     */
+    @Override
+    public void run() {
+        List<ChatNotification> batch = new ArrayList<ChatNotification>();
+
+        while (running || !queue.isEmpty()) {
+            try {
+                if (queue.isEmpty())
+                    batch.add(queue.take());
+            } catch (InterruptedException iex) {
+                // Woken by close(); write what is left.
+            }
+            queue.drainTo(batch);
+            if (batch.isEmpty())
+                continue;
+
+            try {
+                write(batch);
+            } catch (IOException iox) {
+                System.out.println("Message log write failed: " + iox);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes a batch of messages and forces the segments to disk.
+     */
+    protected synchronized void write(List<ChatNotification> batch)
+            throws IOException {
+        long now = System.currentTimeMillis();
+        Segment seg = segments.isEmpty() ? null : segments.lastEntry().getValue();
+
+        for (ChatNotification note : batch) {
+            byte[] text = note.getEncodedText();
+            if (text == null)
+                text = new byte[0];
+            int size = HEADER + text.length;
+
+            if (seg == null || seg.end + size > seg.buffer.limit()) {
+                if (seg != null)
+                    seg.buffer.force();
+                seg = roll(note.getSequenceNumber(), size);
+            }
+
+            MappedByteBuffer buf = seg.buffer;
+            int pos = seg.end;
+            buf.putLong(pos + 4, note.getSequenceNumber());
+            buf.putLong(pos + 12, now);
+            ByteBuffer out = buf.duplicate();
+            out.position(pos + HEADER);
+            out.put(text);
+            buf.putInt(pos, size - 4);
+
+            seg.noteRecord(note.getSequenceNumber(), now, pos);
+            seg.end = pos + size;
+        }
+
+        seg.buffer.force();
+    }
+
+    /**
+     * Starts a new segment and applies the retention limits to the old
+     * ones.
+     *
+     * @param baseSeq The sequence number of the first message in it.
+     * @param minSize The size of that first record.
+     * @return The new active segment.
+     */
+    protected Segment roll(long baseSeq, int minSize) throws IOException {
+        File f = new File(directory, String.format("%020d.log", baseSeq));
+        Segment seg = new Segment(f, baseSeq);
+        seg.buffer = map(f, Math.max(segmentBytes, minSize));
+        segments.put(baseSeq, seg);
+
+        long total = 0;
+        for (Segment s : segments.values())
+            total += s.buffer.limit();
+
+        long oldest = System.currentTimeMillis() - retentionMillis;
+        while (segments.size() > 1) {
+            Segment s = segments.firstEntry().getValue();
+            if (total <= retentionBytes && s.lastTime >= oldest)
+                break;
+            segments.remove(s.baseSeq);
+            total -= s.buffer.limit();
+            if (!s.file.delete())
+                System.out.println("Could not delete log segment " + s.file);
+        }
+
+        return seg;
+    }
+
+    /**
+     * Maps a segment file into memory, creating or extending it as
+     * needed.
+     */
+    protected static MappedByteBuffer map(File f, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            FileChannel ch = raf.getChannel();
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+// MessageQueueStress.java
+// 2026-10-18 First version
+//
+// Stress test of the message path of a ChatServer.
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * MessageQueueStress checks that a ChatServer numbers and delivers
+ * messages correctly while many threads say things at once. It runs a
+ * server in the same JVM, without a NIO transport, registers a number
+ * of listeners with it and has a number of producer threads call say ()
+ * as fast as they can. Then it checks that every listener got
+ *
+ *  - every sequence number from the first to the last once, in order,
+ *    so no number was given twice or skipped;
+ *  - every message of every producer once, in the order it was said.
+ *
+ * With pauses on, each producer sleeps for a random moment now and then,
+ * so the room's distribution task keeps running out of work and has to
+ * be woken by the next message. A lost wakeup shows as messages that
+ * are never delivered: the run then stops after a timeout and fails.
+ *
+ * The server binds itself in the rmiregistry like any other, so one
+ * must be running or startable on this host. The exit status is 0 if
+ * all checks pass and 1 otherwise.
+ */
+public class MessageQueueStress
+{
+    /**
+     * How long to wait for the last message to be delivered.
+     */
+    protected static final long TIMEOUT_MILLIS = 60000;
+
+    /**
+     * A listener that records what it is sent. Only ever called by one
+     * mailbox drain task at a time.
+     */
+    protected static class Recorder implements RemoteEventListener {
+        protected final String name;
+        protected final int producers;
+
+        /**
+         * The sequence number of the last message received.
+         */
+        protected volatile long lastSeq = 0;
+
+        /**
+         * The index of the next message expected from each producer.
+         */
+        protected final int[] nextFrom;
+
+        /**
+         * What went wrong; the first few problems are kept.
+         */
+        protected final List<String> problems = new ArrayList<String>();
+        protected long errors = 0;
+
+        protected final AtomicLong received = new AtomicLong();
+
+        Recorder(String name, int producers) {
+            this.name = name;
+            this.producers = producers;
+            nextFrom = new int[producers];
+        }
+
+        @Override
+        public void notify(RemoteEvent rev) {
+            if (rev instanceof ChatBatchNotification) {
+                ChatBatchNotification batch = (ChatBatchNotification) rev;
+                for (int i = 0; i < batch.size(); i++)
+                    take(batch.getSequenceNumber() + i, batch.getNotification(i));
+            } else if (rev instanceof ChatNotification) {
+                take(rev.getSequenceNumber(), (ChatNotification) rev);
+            }
+        }
+
+        protected void take(long seq, ChatNotification note) {
+            if (seq != lastSeq + 1 && lastSeq != 0)
+                problem("MSG#" + seq + " after MSG#" + lastSeq);
+            lastSeq = seq;
+            if (note == null || note instanceof MemberEvent)
+                return;
+
+            // The text reads "p<producer>: <index>".
+            String text = note.getText();
+            int colon = text.indexOf(':');
+            int p = Integer.parseInt(text.substring(1, colon));
+            int index = Integer.parseInt(text.substring(colon + 2));
+            if (index != nextFrom[p])
+                problem("message " + index + " of producer " + p
+                        + " where " + nextFrom[p] + " was expected");
+            nextFrom[p] = index + 1;
+            received.incrementAndGet();
+        }
+
+        protected void problem(String what) {
+            if (errors++ < 5)
+                problems.add(name + ": " + what);
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * The stress test program.
+     *
+     * @param argv [producers [messages-per-producer [listeners [pause]]]]
+     */
+    public static void main(String[] argv) throws Exception {
+        final int producers = (argv.length > 0) ? Integer.parseInt(argv[0]) : 32;
+        final int messages = (argv.length > 1) ? Integer.parseInt(argv[1]) : 20000;
+        int listeners = (argv.length > 2) ? Integer.parseInt(argv[2]) : 4;
+        final boolean pause = argv.length > 3 && argv[3].equalsIgnoreCase("pause");
+
+        ChatServer.Config config = new ChatServer.Config();
+        config.nioPort = -1;
+        config.rateLimit = 0;
+        config.highWaterMark = Integer.MAX_VALUE;
+        config.leaseMillis = TimeUnit.DAYS.toMillis(1);
+        config.logVerbosity = ConsoleLog.Verbosity.QUIET;
+        final ChatServer server = new ChatServer("stress" + System.nanoTime(), config);
+
+        Recorder[] recorders = new Recorder[listeners];
+        for (int i = 0; i < listeners; i++) {
+            recorders[i] = new Recorder("listener" + i, producers);
+            server.register(recorders[i], recorders[i].getName());
+        }
+        final Recorder speaker = new Recorder("speaker", producers);
+        server.register(speaker, speaker.getName());
+
+        System.out.printf("%d producers x %d messages to %d listeners%s%n",
+                producers, messages, listeners, pause ? ", with pauses" : "");
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong failedCalls = new AtomicLong();
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int id = p;
+            threads[p] = new Thread("producer-" + p) {
+                @Override
+                public void run() {
+                    Random random = new Random(id);
+                    try {
+                        start.await();
+                    } catch (InterruptedException iex) {
+                        return;
+                    }
+                    for (int i = 0; i < messages; i++) {
+                        try {
+                            server.say(speaker, "p" + id + ": " + i);
+                        } catch (Exception e) {
+                            failedCalls.incrementAndGet();
+                        }
+                        if (pause && random.nextInt(100) == 0)
+                            LockSupport.parkNanos(random.nextInt(2000000));
+                    }
+                }
+            };
+            threads[p].start();
+        }
+
+        long t0 = System.nanoTime();
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+
+        long expected = (long) producers * messages;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        for (Recorder r : recorders) {
+            while (r.received.get() < expected && System.nanoTime() < deadline)
+                Thread.sleep(10);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+
+        boolean ok = failedCalls.get() == 0;
+        if (!ok)
+            System.out.println("FAIL: " + failedCalls.get() + " calls to say () failed");
+        for (Recorder r : recorders) {
+            if (r.received.get() != expected) {
+                ok = false;
+                System.out.printf("FAIL: %s got %d of %d messages%s%n", r.getName(),
+                        r.received.get(), expected,
+                        (r.received.get() < expected) ? " (lost wakeup?)" : "");
+            }
+            for (String problem : r.problems)
+                System.out.println("FAIL: " + problem);
+            if (r.errors > 0)
+                ok = false;
+        }
+
+        System.out.printf("%s: %d messages in %d ms, last MSG#%d%n",
+                ok ? "PASS" : "FAIL", expected, millis, recorders[0].lastSeq);
+        server.unbind();
+        System.exit(ok ? 0 : 1);
+    }
+}
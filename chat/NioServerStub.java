@@ -0,0 +1,357 @@
+// NioServerStub.java
+// 2026-10-18 First version
+//
+// The client end of the NIO transport.
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+
+import java.rmi.RemoteException;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NioServerStub stands in for a ChatServer that a client reaches over
+ * the NIO transport (see NioTransport). It gives the client a
+ * ChatServerInterface, so the client makes the same calls as over RMI.
+ *
+ * The client end is a plain blocking socket: it only has the one
+ * connection, so it gains nothing from a selector. Calls are written
+ * as frames by the calling thread, and a reader thread completes each
+ * call when its reply arrives, so several threads can have calls
+ * outstanding at once. The events that arrive on the connection are
+ * handed to the client's listener on a thread of their own, in order,
+ * so that a listener that takes a lock held by a calling thread cannot
+ * stop replies from being read. The server only sends as many messages
+ * as the client has given it credit for, and the client grants more as
+ * the listener takes them, so a slow listener slows down what is sent
+ * rather than letting it pile up here.
+ */
+public class NioServerStub implements InvocationHandler, Runnable
+{
+    /**
+     * How long, in milliseconds, to wait for the connection to be set up.
+     */
+    protected static final int CONNECT_TIMEOUT = 2000;
+
+    /**
+     * How long, in milliseconds, to wait for the reply to a call. A
+     * server that takes longer is taken to have hung, and the connection
+     * is closed. It is longer than the server's read timeout, since a
+     * server that delays messages to keep a client to its rate limit
+     * may hold a sayAll () call for a few seconds.
+     */
+    protected static final int READ_TIMEOUT = 30000;
+
+    protected final Socket socket;
+    protected final OutputStream out;
+    protected final DataInputStream in;
+
+    /**
+     * The calls waiting for a reply, by call id.
+     */
+    protected final ConcurrentHashMap<Integer, CompletableFuture<Object>> pending =
+            new ConcurrentHashMap<Integer, CompletableFuture<Object>>();
+    protected final AtomicInteger nextCallId = new AtomicInteger();
+
+    /**
+     * The listener the client last passed in a call; it receives the
+     * events that arrive on the connection.
+     */
+    protected volatile RemoteEventListener listener = null;
+
+    /**
+     * Delivers events to the listener, one at a time.
+     */
+    protected final ExecutorService dispatcher;
+
+    /**
+     * Events read but not yet handed to the dispatcher. The reader
+     * collects the events that have arrived together and hands them
+     * over at once. Only used by the reader thread.
+     */
+    protected final ArrayList<RemoteEvent> received = new ArrayList<RemoteEvent>();
+
+    /**
+     * Messages handed to the listener since credit was last granted.
+     * Only used by the dispatcher.
+     */
+    protected int delivered = 0;
+
+    /**
+     * Set when the connection is lost or closed; later calls fail.
+     */
+    protected volatile boolean closed = false;
+
+    /**
+     * Connects to a server.
+     *
+     * @param address The address the server gave from
+     *                getTransportAddress (), as host:port.
+     * @return The server.
+     */
+    public static ChatServerInterface connect(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0)
+            throw new IOException("Not a transport address: " + address);
+        String host = address.substring(0, colon);
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Not a transport address: " + address);
+        }
+
+        NioServerStub stub = new NioServerStub(host, port);
+        return (ChatServerInterface) Proxy.newProxyInstance(
+                ChatServerInterface.class.getClassLoader(),
+                new Class<?>[] { ChatServerInterface.class },
+                stub);
+    }
+
+    protected NioServerStub(String host, int port) throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        socket.setTcpNoDelay(true);
+        out = socket.getOutputStream();
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        dispatcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "nio-events");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        Thread reader = new Thread(this, "nio-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Makes a call on the server. say () from a client with its listener
+     * goes as a SAY frame, which only holds the text; everything else as
+     * a CALL frame.
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            String name = method.getName();
+            if (name.equals("equals"))
+                return proxy == args[0];
+            if (name.equals("hashCode"))
+                return System.identityHashCode(proxy);
+            return "NioServerStub[" + socket.getRemoteSocketAddress() + "]";
+        }
+
+        Class<?>[] types = method.getParameterTypes();
+        Object[] sent = (args == null) ? new Object[0] : args.clone();
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == RemoteEventListener.class) {
+                if (sent[i] != null)
+                    listener = (RemoteEventListener) sent[i];
+                sent[i] = null;
+            }
+        }
+
+        int callId = nextCallId.incrementAndGet();
+        NioTransport.FrameOutput fout = new NioTransport.FrameOutput();
+        byte type;
+        if (method.getName().equals("say") && types.length == 2) {
+            type = NioTransport.SAY;
+            ChatNotification.writeBytes(fout, ChatNotification.encodeText((String) sent[1]));
+        } else {
+            type = NioTransport.CALL;
+            fout.writeUTF(method.getName());
+            fout.writeByte(types.length);
+            for (Class<?> t : types)
+                fout.writeUTF(t.getName());
+            fout.writeObject(sent);
+        }
+
+        Object result = call(type, callId, fout);
+        if (method.getName().equals("unregister"))
+            close();
+        return result;
+    }
+
+    /**
+     * Sends a frame and waits for its reply, for up to READ_TIMEOUT.
+     * If there is none by then, the connection is closed, which fails
+     * the other calls waiting as well.
+     */
+    protected Object call(byte type, int callId, NioTransport.FrameOutput fout)
+            throws RemoteException {
+        CompletableFuture<Object> reply = new CompletableFuture<Object>();
+        pending.put(callId, reply);
+        try {
+            if (closed)
+                throw new IOException("Connection closed");
+            ByteBuffer frame = fout.toFrame(type, callId);
+            synchronized (out) {
+                out.write(frame.array(), 0, frame.limit());
+                out.flush();
+            }
+            return reply.get(READ_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException tex) {
+            close();
+            throw new RemoteException("No reply from server in "
+                    + READ_TIMEOUT + " ms", tex);
+        } catch (IOException iox) {
+            close();
+            throw new RemoteException("Call failed", iox);
+        } catch (ExecutionException eex) {
+            Throwable t = eex.getCause();
+            if (t instanceof RemoteException)
+                throw (RemoteException) t;
+            throw new RemoteException("Call failed", t);
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Call interrupted", iex);
+        } finally {
+            pending.remove(callId);
+        }
+    }
+
+    /**
+     * Reads frames until the connection is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                int len = in.readInt();
+                if (len <= 0 || len > NioTransport.MAX_FRAME)
+                    throw new IOException("Bad frame length " + len);
+                byte[] frame = new byte[len];
+                in.readFully(frame);
+                handle(frame);
+                if (!received.isEmpty() && in.available() == 0)
+                    deliver();
+            }
+        } catch (EOFException eof) {
+            // The server closed the connection.
+        } catch (Exception e) {
+            if (!closed)
+                System.out.println("[Connection to server lost: " + e + "]");
+        }
+        close();
+    }
+
+    protected void handle(byte[] frame) throws IOException, ClassNotFoundException {
+        NioTransport.FrameInput fin =
+                new NioTransport.FrameInput(new ByteArrayInputStream(frame));
+        byte type = fin.readByte();
+        int callId = fin.readInt();
+
+        if (type == NioTransport.EVENT) {
+            received.add(NioTransport.readEvent(fin));
+            return;
+        }
+
+        CompletableFuture<Object> reply = pending.get(callId);
+        if (reply == null)
+            return;
+        if (type == NioTransport.REPLY) {
+            reply.complete(fin.readObject());
+        } else {
+            // A RemoteException, such as a RateLimitedException, is sent
+            // as it is after its text.
+            String text = fin.readUTF();
+            Object t = (fin.available() > 0) ? fin.readObject() : null;
+            reply.completeExceptionally((t instanceof RemoteException)
+                    ? (RemoteException) t : new RemoteException(text));
+        }
+    }
+
+    /**
+     * Hands the events received so far to the listener, as one task for
+     * the dispatcher.
+     */
+    protected void deliver() {
+        final RemoteEventListener rel = listener;
+        final RemoteEvent[] revs = received.toArray(new RemoteEvent[received.size()]);
+        received.clear();
+        if (rel == null)
+            return;
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                int n = 0;
+                for (RemoteEvent rev : revs) {
+                    try {
+                        rel.notify(rev);
+                    } catch (RemoteException rex) {
+                        // The listener is local; nothing to report.
+                    }
+                    n += (rev instanceof ChatBatchNotification)
+                            ? ((ChatBatchNotification) rev).size() : 1;
+                }
+                consumed(n);
+            }
+        });
+    }
+
+    /**
+     * Counts messages the listener has been given, and grants the server
+     * that much more credit once it adds up to half the initial credit.
+     * Called by the dispatcher.
+     */
+    protected void consumed(int n) {
+        delivered += n;
+        if (delivered < NioTransport.INITIAL_CREDIT / 2 || closed)
+            return;
+        try {
+            NioTransport.FrameOutput fout = new NioTransport.FrameOutput();
+            fout.writeInt(delivered);
+            ByteBuffer frame = fout.toFrame(NioTransport.CREDIT, 0);
+            synchronized (out) {
+                out.write(frame.array(), 0, frame.limit());
+                out.flush();
+            }
+            delivered = 0;
+        } catch (IOException iox) {
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection. Calls waiting for a reply fail.
+     */
+    protected void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException iox) {
+            // Closing anyway.
+        }
+        for (CompletableFuture<Object> reply : pending.values())
+            reply.completeExceptionally(new RemoteException("Connection closed"));
+        dispatcher.shutdown();
+    }
+}
@@ -0,0 +1,949 @@
+// NioTransport.java
+// 2026-10-18 First version
+//
+// A non-blocking socket transport for ChatServer, as an alternative to RMI.
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.rmi.RemoteException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * NioTransport lets clients talk to a ChatServer over one plain TCP
+ * connection each, instead of through RMI. The rmiregistry is still used
+ * to find the server: ChatServerInterface.getTransportAddress () tells a
+ * client where to connect, and NioServerStub is the client's end.
+ *
+ * One selector thread serves all connections. Everything on a
+ * connection is a frame:
+ *
+ *   int  length     the number of bytes after this field
+ *   byte type       CALL, SAY, REPLY, ERROR, EVENT or CREDIT
+ *   int  callId     matches a REPLY or ERROR to its call; 0 otherwise
+ *   byte body[]
+ *
+ * Notifications travel as EVENT frames in the same compact encoding as
+ * over RMI (their writeExternal ()), preceded by a tag byte for the
+ * class. SAY carries just the UTF-8 text. All other calls are CALL
+ * frames with the method name, parameter types and serialized arguments,
+ * and are made on the ChatServer by reflection. The method is looked up
+ * by its name and number of parameters among those of
+ * ChatServerInterface, so no class named on the wire is ever loaded, and
+ * the arguments may only hold strings, arrays and boxed primitives (see
+ * CALL_FILTER). An argument of type RemoteEventListener always stands
+ * for the connection itself, so it is not sent.
+ *
+ * The connection is the client's listener: ClientMailbox delivers to it
+ * by queueing the event, which never blocks, but only while the client
+ * has credit (see below). If no other thread is
+ * writing to the connection, the delivering thread then encodes what is
+ * queued and writes it with one gathering write on the non-blocking
+ * socket; whatever the socket does not take is finished by the selector
+ * thread when the socket is writable again. Events that pile up in the
+ * meantime are encoded together, with the consecutive messages of a
+ * room joined into one batch. A notify () over RMI holds the mailbox
+ * until the client has answered, which is what lets messages pile up
+ * into batches there; here the client holds them back.
+ *
+ * The client does that with credit: it may be sent INITIAL_CREDIT
+ * messages, and grants more in CREDIT frames (body: int count) as it
+ * has handed messages to its listener. The connection is a
+ * ClientMailbox.FlowControl: once the messages queued on it use up the
+ * credit, the mailbox stops delivering and keeps the messages until
+ * the client grants more. So a client that falls behind has its backlog
+ * in its mailbox, where the high-water mark and the overflow policy
+ * apply, as over RMI.
+ *
+ * Calls are carried out on a small pool, one at a time per connection,
+ * so that a client's calls are served in order.
+ */
+public class NioTransport implements Runnable
+{
+    /**
+     * Frame types.
+     */
+    public static final byte CALL = 1;
+    public static final byte SAY = 2;
+    public static final byte REPLY = 3;
+    public static final byte ERROR = 4;
+    public static final byte EVENT = 5;
+    public static final byte CREDIT = 6;
+
+    /**
+     * The number of messages a client can take when it connects. The
+     * client grants more with CREDIT frames as it works through them.
+     */
+    public static final int INITIAL_CREDIT = 256;
+
+    /**
+     * Event class tags.
+     */
+    protected static final byte OTHER_EVENT = 0;
+    protected static final byte CHAT_NOTIFICATION = 1;
+    protected static final byte MEMBER_EVENT = 2;
+    protected static final byte BATCH_NOTIFICATION = 3;
+    protected static final byte PRESENCE_EVENT = 4;
+
+    /**
+     * The largest frame accepted.
+     */
+    public static final int MAX_FRAME = 16 << 20;
+
+    /**
+     * The most frames written to a connection in one gathering write.
+     */
+    protected static final int MAX_GATHER = 64;
+
+    /**
+     * The most messages joined into one batch frame.
+     */
+    protected static final int MAX_COALESCE = 256;
+
+    /**
+     * A connection with this many events waiting to be written refuses
+     * further events, as a client that has stopped reading. Credit
+     * keeps the queue far shorter; this only guards against a listener
+     * that does not wait for it.
+     */
+    protected static final int MAX_QUEUED_EVENTS = 10000;
+
+    /**
+     * The longest array accepted in the arguments of a call.
+     */
+    protected static final int MAX_CALL_ARRAY = 65536;
+
+    /**
+     * What the arguments of a call may hold: an Object[] of strings,
+     * string arrays and boxed primitives, and nothing deeper or larger.
+     */
+    protected static final ObjectInputFilter CALL_FILTER =
+            ObjectInputFilter.Config.createFilter(
+                    "maxdepth=3;maxarray=" + MAX_CALL_ARRAY
+                    + ";maxrefs=" + (MAX_CALL_ARRAY + 16)
+                    + ";maxbytes=" + MAX_FRAME
+                    + ";java.lang.Object;java.lang.String;java.lang.Number"
+                    + ";java.lang.Boolean;java.lang.Byte;java.lang.Character"
+                    + ";java.lang.Short;java.lang.Integer;java.lang.Long"
+                    + ";java.lang.Float;java.lang.Double;!*");
+
+    /**
+     * The methods of ChatServerInterface that a CALL frame can name, by
+     * name and number of parameters, as in "join/2".
+     */
+    protected static final Map<String, Method> CALLS = new HashMap<String, Method>();
+
+    static {
+        for (Method m : ChatServerInterface.class.getMethods())
+            CALLS.put(m.getName() + "/" + m.getParameterTypes().length, m);
+    }
+
+    protected final ChatServer server;
+    protected final ServerSocketChannel acceptor;
+    protected final Selector selector;
+    protected final ExecutorService callPool;
+    protected final Thread selectorThread;
+
+    /**
+     * Connections that have frames to write but are not yet registered
+     * for OP_WRITE. Handed from other threads to the selector thread.
+     */
+    protected final ConcurrentLinkedQueue<Connection> writeRequests =
+            new ConcurrentLinkedQueue<Connection>();
+
+    protected volatile boolean running = true;
+
+    /**
+     * The last event encoded, with its frame. A room hands the same
+     * notification to all its members, so this saves encoding it again
+     * for every connection.
+     */
+    protected volatile EncodedEvent lastEncoded = null;
+
+    /**
+     * Opens the listening socket and starts the selector thread.
+     *
+     * @param server  The server to serve.
+     * @param port    The port to listen on, or 0 for any free port.
+     * @param threads The number of threads that carry out calls.
+     */
+    public NioTransport(ChatServer server, int port, int threads)
+            throws IOException {
+        this.server = server;
+        selector = Selector.open();
+        acceptor = ServerSocketChannel.open();
+        acceptor.bind(new InetSocketAddress(port));
+        acceptor.configureBlocking(false);
+        acceptor.register(selector, SelectionKey.OP_ACCEPT);
+
+        callPool = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "nio-call-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        selectorThread = new Thread(this, "nio-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Returns the address clients should connect to.
+     *
+     * @return The address as host:port.
+     */
+    public String getAddress() throws IOException {
+        return InetAddress.getLocalHost().getHostAddress()
+                + ":" + acceptor.socket().getLocalPort();
+    }
+
+    /**
+     * Stops accepting and closes all connections.
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+        callPool.shutdown();
+    }
+
+    /* *** The selector thread *** */
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+
+                Connection c;
+                while ((c = writeRequests.poll()) != null) {
+                    try {
+                        c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    } catch (CancelledKeyException ckx) {
+                        // Closed meanwhile.
+                    }
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept();
+                        if (key.isValid() && key.isReadable())
+                            ((Connection) key.attachment()).read();
+                        if (key.isValid() && key.isWritable())
+                            ((Connection) key.attachment()).write();
+                    } catch (IOException iox) {
+                        Object a = key.attachment();
+                        if (a instanceof Connection)
+                            ((Connection) a).close();
+                    } catch (CancelledKeyException ckx) {
+                        // Closed by another thread.
+                    }
+                }
+            }
+        } catch (IOException iox) {
+            System.out.println("NIO transport stopped: " + iox);
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection)
+                ((Connection) key.attachment()).close();
+        }
+        try {
+            acceptor.close();
+            selector.close();
+        } catch (IOException iox) {
+            // Closing anyway.
+        }
+    }
+
+    /**
+     * Returns the frame of an event, for one connection to write.
+     */
+    protected ByteBuffer encodeEvent(RemoteEvent rev) throws IOException {
+        EncodedEvent e = lastEncoded;
+        if (e == null || e.event != rev) {
+            FrameOutput fout = FrameOutput.local();
+            writeEvent(fout, rev);
+            e = new EncodedEvent(rev, fout.toFrame(EVENT, 0));
+            lastEncoded = e;
+        }
+        return e.frame.duplicate();
+    }
+
+    /**
+     * An event and its frame.
+     */
+    protected static class EncodedEvent {
+        final RemoteEvent event;
+        final ByteBuffer frame;
+
+        EncodedEvent(RemoteEvent event, ByteBuffer frame) {
+            this.event = event;
+            this.frame = frame;
+        }
+    }
+
+    protected void accept() throws IOException {
+        SocketChannel ch = acceptor.accept();
+        if (ch == null)
+            return;
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        Connection c = new Connection(ch);
+        c.key = ch.register(selector, SelectionKey.OP_READ, c);
+    }
+
+    /**
+     * One client connection. It is also the client's RemoteEventListener
+     * on the server; it is a local object and is never exported.
+     */
+    protected class Connection
+            implements RemoteEventListener, ClientMailbox.FlowControl, Runnable {
+        protected final SocketChannel channel;
+        protected SelectionKey key;
+
+        /**
+         * Received bytes not yet making up a whole frame. Only used by
+         * the selector thread.
+         */
+        protected ByteBuffer in = ByteBuffer.allocate(8192);
+
+        /**
+         * Replies waiting to be written, queued by the call threads.
+         */
+        protected final ConcurrentLinkedQueue<ByteBuffer> replies =
+                new ConcurrentLinkedQueue<ByteBuffer>();
+
+        /**
+         * Events waiting to be written, queued by notify(), and how many
+         * there are. They are only encoded when the socket has taken
+         * everything before them, so that events which pile up behind a
+         * slow socket go out together as one batch.
+         */
+        protected final ConcurrentLinkedQueue<RemoteEvent> events =
+                new ConcurrentLinkedQueue<RemoteEvent>();
+        protected final AtomicInteger queuedEvents = new AtomicInteger();
+
+        /**
+         * The number of messages in the queued events; a batch counts as
+         * its size.
+         */
+        protected final AtomicLong queuedMessages = new AtomicLong();
+
+        /**
+         * The number of messages the client can still take. Events are
+         * held back while it is used up; a batch counts as its size.
+         */
+        protected final AtomicLong credit = new AtomicLong(INITIAL_CREDIT);
+
+        /**
+         * What to run when the client grants credit, set by ready () when
+         * the mailbox has to wait for it.
+         */
+        protected final AtomicReference<Runnable> resume =
+                new AtomicReference<Runnable>();
+
+        /**
+         * Frames being written. Only used by the thread that holds the
+         * writing flag.
+         */
+        protected final ArrayDeque<ByteBuffer> frames = new ArrayDeque<ByteBuffer>();
+
+        /**
+         * True while a thread is writing to the connection, or while it
+         * is registered for OP_WRITE. The holder owns frames.
+         */
+        protected final AtomicBoolean writing = new AtomicBoolean();
+
+        /**
+         * Received call frames, carried out in order by run().
+         */
+        protected final ConcurrentLinkedQueue<byte[]> calls =
+                new ConcurrentLinkedQueue<byte[]>();
+        protected final AtomicBoolean serving = new AtomicBoolean();
+
+        protected final AtomicBoolean closed = new AtomicBoolean();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Reads what has arrived and queues each whole frame as a call.
+         */
+        void read() throws IOException {
+            if (channel.read(in) < 0)
+                throw new IOException("Closed by client");
+
+            in.flip();
+            while (in.remaining() >= 4) {
+                int len = in.getInt(in.position());
+                if (len <= 0 || len > MAX_FRAME)
+                    throw new IOException("Bad frame length " + len);
+                if (in.remaining() < 4 + len)
+                    break;
+                in.getInt();
+                byte[] frame = new byte[len];
+                in.get(frame);
+                if (frame[0] == CREDIT)
+                    grant(frame);
+                else
+                    calls.offer(frame);
+            }
+            in.compact();
+
+            // Make room for a frame larger than the buffer.
+            if (in.position() >= 4 && !in.hasRemaining()) {
+                int len = in.getInt(0);
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(in.capacity() * 2, len + 4));
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+
+            if (!calls.isEmpty() && serving.compareAndSet(false, true))
+                callPool.execute(this);
+        }
+
+        /**
+         * Finishes writing what the socket would not take earlier. Called
+         * by the selector thread when the socket is writable again.
+         */
+        void write() throws IOException {
+            if (!flush())
+                return;
+            key.interestOps(SelectionKey.OP_READ);
+            writing.set(false);
+            if (hasWork())
+                requestWrite();
+        }
+
+        /**
+         * Writes as many frames as the socket takes, in one gathering
+         * write. Only called by the thread that has set the writing flag.
+         *
+         * @return True if the socket took all frames.
+         */
+        boolean flush() throws IOException {
+            ByteBuffer frame;
+            while ((frame = replies.poll()) != null)
+                frames.add(frame);
+            if (frames.isEmpty())
+                encodeEvents();
+
+            ByteBuffer[] batch = new ByteBuffer[Math.min(frames.size(), MAX_GATHER)];
+            int n = 0;
+            for (ByteBuffer b : frames) {
+                if (n == batch.length)
+                    break;
+                batch[n++] = b;
+            }
+            channel.write(batch, 0, n);
+            while (!frames.isEmpty() && !frames.peek().hasRemaining())
+                frames.poll();
+            return frames.isEmpty();
+        }
+
+        /**
+         * Returns true if something is queued that may be written now:
+         * a reply, or an event the client has credit for.
+         */
+        boolean hasWork() {
+            return !replies.isEmpty() || (!events.isEmpty() && credit.get() > 0);
+        }
+
+        /**
+         * Adds the credit in a CREDIT frame, and writes the events that
+         * were held back for want of it.
+         */
+        void grant(byte[] frame) {
+            ByteBuffer b = ByteBuffer.wrap(frame);
+            b.get();
+            b.getInt();
+            credit.addAndGet(b.getInt());
+            if (!events.isEmpty())
+                requestWrite();
+            resume();
+        }
+
+        /**
+         * Tells whether the client has credit for more than what is
+         * queued already. A closed connection is always ready, so that
+         * the mailbox gets its failures.
+         */
+        boolean canTake() {
+            return closed.get() || queuedMessages.get() < credit.get();
+        }
+
+        /**
+         * Runs what the mailbox left to run when it had to wait.
+         */
+        void resume() {
+            Runnable r = resume.getAndSet(null);
+            if (r != null)
+                r.run();
+        }
+
+        /**
+         * Turns the queued events into frames. Consecutive messages of a
+         * room, whether sent on their own or in batches, are joined into
+         * one ChatBatchNotification; anything else is sent as it is,
+         * including batches with messages left out for a blocking client.
+         */
+        void encodeEvents() throws IOException {
+            ArrayList<ChatNotification> run = new ArrayList<ChatNotification>();
+            RemoteEvent rev;
+            while (credit.get() > 0 && (rev = events.poll()) != null) {
+                queuedEvents.decrementAndGet();
+                queuedMessages.addAndGet(-size(rev));
+                if (rev instanceof ChatBatchNotification) {
+                    ChatBatchNotification batch = (ChatBatchNotification) rev;
+                    credit.addAndGet(-batch.size());
+                    if (batch.hasSkipped()) {
+                        endRun(run);
+                        frames.add(encodeEvent(batch));
+                        continue;
+                    }
+                    if (run.isEmpty() && events.isEmpty()) {
+                        frames.add(encodeEvent(batch));
+                        continue;
+                    }
+                    for (int i = 0; i < batch.size(); i++)
+                        coalesce(run, batch.getNotification(i));
+                } else if (rev.getClass() == ChatNotification.class
+                        || rev.getClass() == MemberEvent.class) {
+                    credit.decrementAndGet();
+                    coalesce(run, (ChatNotification) rev);
+                } else {
+                    credit.decrementAndGet();
+                    endRun(run);
+                    frames.add(encodeEvent(rev));
+                }
+            }
+            endRun(run);
+        }
+
+        void coalesce(ArrayList<ChatNotification> run, ChatNotification note)
+                throws IOException {
+            if (!run.isEmpty()) {
+                ChatNotification last = run.get(run.size() - 1);
+                if (run.size() == MAX_COALESCE
+                        || last.getID() != note.getID()
+                        || last.getSequenceNumber() + 1 != note.getSequenceNumber())
+                    endRun(run);
+            }
+            run.add(note);
+        }
+
+        void endRun(ArrayList<ChatNotification> run) throws IOException {
+            if (run.size() == 1) {
+                frames.add(encodeEvent(run.get(0)));
+            } else if (run.size() > 1) {
+                FrameOutput fout = FrameOutput.local();
+                writeEvent(fout, new ChatBatchNotification(NioTransport.this,
+                        run.toArray(new ChatNotification[run.size()])));
+                frames.add(fout.toFrame(EVENT, 0));
+            }
+            run.clear();
+        }
+
+        /**
+         * Writes what has been queued, unless another thread is already
+         * at it. What the socket does not take at once is left to the
+         * selector thread. Called from any thread.
+         */
+        void requestWrite() {
+            while (writing.compareAndSet(false, true)) {
+                try {
+                    if (!flush()) {
+                        writeRequests.offer(this);
+                        selector.wakeup();
+                        return;
+                    }
+                } catch (IOException iox) {
+                    close();
+                    return;
+                }
+                writing.set(false);
+                if (!hasWork())
+                    return;
+            }
+        }
+
+        /**
+         * Queues a reply for writing.
+         */
+        void send(ByteBuffer frame) {
+            replies.offer(frame);
+            requestWrite();
+        }
+
+        /**
+         * Carries out the received calls in order, on the call pool.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                byte[] frame = calls.poll();
+                if (frame == null) {
+                    serving.set(false);
+                    if (calls.isEmpty() || !serving.compareAndSet(false, true))
+                        return;
+                    continue;
+                }
+                serve(frame);
+            }
+        }
+
+        void serve(byte[] frame) {
+            int callId = 0;
+            try {
+                FrameInput fin = new FrameInput(new ByteArrayInputStream(frame),
+                        CALL_FILTER);
+                byte type = fin.readByte();
+                callId = fin.readInt();
+
+                Object result = null;
+                if (type == SAY) {
+                    result = server.say(this,
+                            ChatNotification.decodeText(ChatNotification.readBytes(fin)));
+                } else if (type == CALL) {
+                    result = invoke(fin);
+                } else {
+                    throw new IOException("Unexpected frame type " + type);
+                }
+
+                FrameOutput fout = FrameOutput.local();
+                fout.writeObject(result);
+                send(fout.toFrame(REPLY, callId));
+            } catch (Exception e) {
+                Throwable t = (e instanceof InvocationTargetException)
+                        ? ((InvocationTargetException) e).getCause() : e;
+                try {
+                    FrameOutput fout = FrameOutput.local();
+                    fout.writeUTF(String.valueOf(t));
+                    if (t instanceof RemoteException)
+                        fout.writeObject(t);
+                    send(fout.toFrame(ERROR, callId));
+                } catch (IOException iox) {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Decodes a CALL frame and makes the call on the server. The
+         * parameter types sent must be those of the method found.
+         */
+        Object invoke(FrameInput fin) throws Exception {
+            String name = fin.readUTF();
+            int count = fin.readByte();
+            Method m = CALLS.get(name + "/" + count);
+            if (m == null)
+                throw new NoSuchMethodException(name);
+            Class<?>[] types = m.getParameterTypes();
+            for (int i = 0; i < count; i++) {
+                if (!types[i].getName().equals(fin.readUTF()))
+                    throw new NoSuchMethodException(name);
+            }
+            Object[] args = (Object[]) fin.readObject();
+            if (args == null || args.length != count)
+                throw new IOException("Bad arguments to " + name);
+
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == RemoteEventListener.class)
+                    args[i] = this;
+            }
+            return m.invoke(server, args);
+        }
+
+        /* ClientMailbox.FlowControl */
+
+        @Override
+        public boolean ready(Runnable r) {
+            if (canTake())
+                return true;
+            // Credit may come between the check and setting resume, and
+            // then nobody would run it; so look again, and take it back.
+            resume.set(r);
+            return canTake() && resume.compareAndSet(r, null);
+        }
+
+        /* RemoteEventListener */
+
+        @Override
+        public void notify(RemoteEvent rev) throws RemoteException {
+            if (closed.get())
+                throw new RemoteException("Connection closed");
+            if (queuedEvents.get() >= MAX_QUEUED_EVENTS)
+                throw new RemoteException("Client is not reading");
+            queuedEvents.incrementAndGet();
+            queuedMessages.addAndGet(size(rev));
+            events.offer(rev);
+            requestWrite();
+        }
+
+        /**
+         * Returns the number of messages in an event, as counted
+         * against credit.
+         */
+        long size(RemoteEvent rev) {
+            return (rev instanceof ChatBatchNotification)
+                    ? ((ChatBatchNotification) rev).size() : 1;
+        }
+
+        @Override
+        public String getName() {
+            return String.valueOf(channel.socket().getRemoteSocketAddress());
+        }
+
+        @Override
+        public String toString() {
+            return "NioConnection[" + getName() + "]";
+        }
+
+        /**
+         * Closes the connection and removes the client from the server,
+         * as a dropped connection means the client is gone.
+         */
+        void close() {
+            if (!closed.compareAndSet(false, true))
+                return;
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+            } catch (IOException iox) {
+                // Closing anyway.
+            }
+            resume();
+            try {
+                callPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        server.removeClient(Connection.this);
+                    }
+                });
+            } catch (java.util.concurrent.RejectedExecutionException rex) {
+                // Shutting down.
+            }
+        }
+    }
+
+    /* *** Encoding, shared with NioServerStub *** */
+
+    /**
+     * Writes an event with its class tag.
+     */
+    public static void writeEvent(ObjectOutput out, RemoteEvent rev)
+            throws IOException {
+        if (rev instanceof ChatBatchNotification) {
+            out.writeByte(BATCH_NOTIFICATION);
+        } else if (rev instanceof MemberEvent) {
+            out.writeByte(MEMBER_EVENT);
+        } else if (rev.getClass() == ChatNotification.class) {
+            out.writeByte(CHAT_NOTIFICATION);
+        } else if (rev instanceof PresenceEvent) {
+            out.writeByte(PRESENCE_EVENT);
+        } else {
+            out.writeByte(OTHER_EVENT);
+            out.writeObject(rev);
+            return;
+        }
+        rev.writeExternal(out);
+    }
+
+    /**
+     * Reads an event written by writeEvent().
+     */
+    public static RemoteEvent readEvent(ObjectInput in)
+            throws IOException, ClassNotFoundException {
+        RemoteEvent rev;
+        switch (in.readByte()) {
+            case BATCH_NOTIFICATION:
+                rev = new ChatBatchNotification();
+                break;
+            case MEMBER_EVENT:
+                rev = new MemberEvent();
+                break;
+            case CHAT_NOTIFICATION:
+                rev = new ChatNotification();
+                break;
+            case PRESENCE_EVENT:
+                rev = new PresenceEvent();
+                break;
+            default:
+                return (RemoteEvent) in.readObject();
+        }
+        rev.readExternal(in);
+        return rev;
+    }
+
+    /**
+     * The ObjectOutput used to build frame bodies. Primitive data goes
+     * straight into the frame; writeObject() embeds a serialized object,
+     * which is only used for call arguments and results.
+     */
+    public static class FrameOutput extends DataOutputStream implements ObjectOutput {
+        /**
+         * The largest body, in bytes, whose buffer a thread keeps for the
+         * next frame; a larger one is let go, so that one long message
+         * does not hold on to a large buffer.
+         */
+        protected static final int KEEP_BUFFER = 64 * 1024;
+
+        private static final ThreadLocal<FrameOutput> LOCAL =
+                new ThreadLocal<FrameOutput>();
+
+        public FrameOutput() {
+            super(new Body());
+        }
+
+        /**
+         * Returns an empty FrameOutput for the calling thread, which
+         * reuses the buffer of the thread's previous frame instead of
+         * growing a new one from scratch. The frame must be taken with
+         * toFrame() before the thread asks for another.
+         */
+        public static FrameOutput local() {
+            FrameOutput fout = LOCAL.get();
+            if (fout == null || ((Body) fout.out).capacity() > KEEP_BUFFER) {
+                fout = new FrameOutput();
+                LOCAL.set(fout);
+            } else {
+                ((Body) fout.out).reset();
+                fout.written = 0;
+            }
+            return fout;
+        }
+
+        @Override
+        public void writeObject(Object obj) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
+            oos.writeObject(obj);
+            oos.close();
+            ChatNotification.writeBytes(this, bytes.toByteArray());
+        }
+
+        /**
+         * Returns the whole frame: the length, the frame type, the call
+         * id and what has been written as the body.
+         */
+        public ByteBuffer toFrame(byte type, int callId) throws IOException {
+            flush();
+            Body body = (Body) out;
+            ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 4 + body.size());
+            frame.putInt(1 + 4 + body.size());
+            frame.put(type);
+            frame.putInt(callId);
+            body.copyTo(frame);
+            frame.flip();
+            return frame;
+        }
+    }
+
+    /**
+     * The buffer of a FrameOutput, which toFrame() copies from directly
+     * rather than through a copy made by toByteArray().
+     */
+    protected static class Body extends ByteArrayOutputStream {
+        Body() {
+            super(256);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+        void copyTo(ByteBuffer frame) {
+            frame.put(buf, 0, count);
+        }
+    }
+
+    /**
+     * The ObjectInput used to read frame bodies; the counterpart of
+     * FrameOutput.
+     */
+    public static class FrameInput extends DataInputStream implements ObjectInput {
+        /**
+         * The filter readObject() applies, or null.
+         */
+        protected final ObjectInputFilter filter;
+
+        public FrameInput(InputStream in) {
+            this(in, null);
+        }
+
+        /**
+         * Creates a FrameInput whose readObject() only accepts what a
+         * filter lets through.
+         *
+         * @param in     The frame body.
+         * @param filter The filter, or null for none.
+         */
+        public FrameInput(InputStream in, ObjectInputFilter filter) {
+            super(in);
+            this.filter = filter;
+        }
+
+        @Override
+        public Object readObject() throws ClassNotFoundException, IOException {
+            byte[] b = ChatNotification.readBytes(this);
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(b));
+            if (filter != null)
+                ois.setObjectInputFilter(filter);
+            try {
+                return ois.readObject();
+            } finally {
+                ois.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+// PresenceEvent.java
+// 2026-10-18 First version
+
+/**
+ * This class implements the notification that tells a ChatClient which
+ * clients are active, away or gone. A client only gets it if it asked
+ * for presence (see ChatServerInterface.watchPresence ()). It holds the
+ * presence of one or more clients, by name: either all of them, when
+ * the client starts watching, or only those that changed since the last
+ * one, so a client that goes away and comes back between two of them is
+ * not mentioned at all.
+ */
+public class PresenceEvent extends RemoteEvent
+{
+  /**
+   * The presence of a client: gone (unregistered or renamed), active,
+   * or away from the keyboard.
+   */
+  public static final int OFFLINE = 0;
+  public static final int ACTIVE = 1;
+  public static final int AWAY = 2;
+
+  /**
+   * The names of the clients, and the presence of each.
+   */
+  protected String [] names;
+  protected int [] states;
+
+  /**
+   * Creates a new PresenceEvent instance.
+   * @param source The object from which this instance originates.
+   * @param serial The number of the event in the server's sequence of
+   *               presence changes.
+   * @param names  The names of the clients.
+   * @param states The presence of each client: OFFLINE, ACTIVE or AWAY.
+   */
+  public PresenceEvent (Object source, long serial,
+			String [] names, int [] states) {
+    super (source,		// Source
+	   0,			// ID
+	   serial,		// sequence number
+	   null);		// handback
+    this.names = names;
+    this.states = states;
+  }
+
+  /**
+   * Creates an empty PresenceEvent, to be filled in by readExternal ().
+   */
+  public PresenceEvent () {
+  }
+
+  /**
+   * Returns the number of clients in the event.
+   * @return The number of clients.
+   */
+  public int size () {
+    return names.length;
+  }
+
+  /**
+   * Returns the name of one client in the event.
+   * @param i The index of the client, from 0 to size () - 1.
+   * @return The name.
+   */
+  public String getName (int i) {
+    return names[i];
+  }
+
+  /**
+   * Returns the presence of one client in the event.
+   * @param i The index of the client, from 0 to size () - 1.
+   * @return OFFLINE, ACTIVE or AWAY.
+   */
+  public int getState (int i) {
+    return states[i];
+  }
+
+  /**
+   * Joins this event with a later one, for a client that has not been
+   * sent this one yet. Where both hold a client, the later one wins.
+   * @param later The later event.
+   * @return The joined event, which has the sequence number of the
+   *         later one.
+   */
+  public PresenceEvent merge (PresenceEvent later) {
+    java.util.LinkedHashMap<String, Integer> m =
+      new java.util.LinkedHashMap<String, Integer> ();
+    for (int i = 0; i < names.length; i++)
+      m.put (names[i], states[i]);
+    for (int i = 0; i < later.names.length; i++)
+      m.put (later.names[i], later.states[i]);
+
+    String [] n = new String [m.size ()];
+    int [] s = new int [m.size ()];
+    int i = 0;
+    for (java.util.Map.Entry<String, Integer> e : m.entrySet ()) {
+      n[i] = e.getKey ();
+      s[i++] = e.getValue ();
+    }
+    PresenceEvent joined = new PresenceEvent (getSource (), later.seqNum, n, s);
+    joined.eventID = later.eventID;
+    return joined;
+  }
+
+  /**
+   * Returns a word for a presence, for showing it.
+   * @param state OFFLINE, ACTIVE or AWAY.
+   * @return "offline", "active" or "away".
+   */
+  public static String describe (int state) {
+    switch (state) {
+    case ACTIVE:
+      return "active";
+    case AWAY:
+      return "away";
+    default:
+      return "offline";
+    }
+  }
+
+  public void writeExternal (java.io.ObjectOutput out)
+    throws java.io.IOException
+  {
+    super.writeExternal (out);
+    ChatNotification.writeVarLong (out, names.length);
+    for (int i = 0; i < names.length; i++) {
+      out.writeByte (states[i]);
+      ChatNotification.writeBytes (out, ChatNotification.encodeText (names[i]));
+    }
+  }
+
+  public void readExternal (java.io.ObjectInput in)
+    throws java.io.IOException, ClassNotFoundException
+  {
+    super.readExternal (in);
+    long n = ChatNotification.readVarLong (in);
+    if (n > Integer.MAX_VALUE)
+      throw new java.io.StreamCorruptedException ("Bad presence size " + n);
+    names = new String [(int) n];
+    states = new int [(int) n];
+    for (int i = 0; i < names.length; i++) {
+      states[i] = in.readByte ();
+      names[i] = ChatNotification.decodeText (ChatNotification.readBytes (in));
+    }
+  }
+}
@@ -0,0 +1,182 @@
+// PresenceTable.java
+// 2026-10-18 First version
+//
+// The presence of the clients of a ChatServer, and who watches it.
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PresenceTable keeps whether each client of a ChatServer is active or
+ * away, by name, and the mailboxes of the clients that watch it.
+ *
+ * A change is not sent when it is made. It is noted, and the server
+ * calls flush() now and then to send everything that changed since the
+ * last flush as one PresenceEvent to all watchers. A client that goes
+ * away and comes back between two flushes, or reports a presence it
+ * already has, costs nothing to send. The same event goes to every
+ * watcher, and a watcher that has not been sent the previous one yet
+ * gets the two joined (see ClientMailbox.offerPresence()).
+ */
+public class PresenceTable
+{
+    /**
+     * The presence of each registered client, by name. Guarded by this.
+     */
+    protected final HashMap<String, Integer> states =
+            new HashMap<String, Integer>();
+
+    /**
+     * The clients whose presence changed since the last flush, with the
+     * presence they had at the last flush. Guarded by this.
+     */
+    protected final LinkedHashMap<String, Integer> changed =
+            new LinkedHashMap<String, Integer>();
+
+    /**
+     * The number of the last event made. Guarded by this.
+     */
+    protected long serial = 0;
+
+    /**
+     * The mailboxes of the clients that watch presence.
+     */
+    protected final Set<ClientMailbox> watchers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The source given to the events.
+     */
+    protected final Object source;
+
+    /**
+     * Creates an empty PresenceTable.
+     *
+     * @param source The source of the events, the server.
+     */
+    public PresenceTable(Object source) {
+        this.source = source;
+    }
+
+    /**
+     * Sets the presence of a client.
+     *
+     * @param name  The name of the client.
+     * @param state PresenceEvent.ACTIVE or AWAY.
+     */
+    public synchronized void set(String name, int state) {
+        Integer old = states.put(name, state);
+        noteChange(name, (old == null) ? PresenceEvent.OFFLINE : old);
+    }
+
+    /**
+     * Removes a client, which is then OFFLINE.
+     *
+     * @param name The name of the client.
+     */
+    public synchronized void remove(String name) {
+        Integer old = states.remove(name);
+        if (old != null)
+            noteChange(name, old);
+    }
+
+    /**
+     * Moves the presence of a client to its new name. The old name goes
+     * OFFLINE.
+     *
+     * @param oldName The name the client had.
+     * @param newName The name it has now.
+     */
+    public synchronized void rename(String oldName, String newName) {
+        Integer state = states.get(oldName);
+        if (state == null)
+            return;
+        remove(oldName);
+        set(newName, state);
+    }
+
+    /**
+     * Notes the presence a client had before a change, unless it already
+     * changed since the last flush. Must be called with the lock held.
+     */
+    protected void noteChange(String name, int before) {
+        if (!changed.containsKey(name))
+            changed.put(name, before);
+    }
+
+    /**
+     * Returns the presence of a client. Must be called with the lock
+     * held.
+     */
+    protected int stateOf(String name) {
+        Integer state = states.get(name);
+        return (state == null) ? PresenceEvent.OFFLINE : state;
+    }
+
+    /**
+     * Starts or stops sending presence changes to a client.
+     *
+     * @param mailbox The client's mailbox.
+     * @param watch   True to start, false to stop.
+     */
+    public void watch(ClientMailbox mailbox, boolean watch) {
+        if (watch)
+            watchers.add(mailbox);
+        else
+            watchers.remove(mailbox);
+    }
+
+    public int getWatchers() {
+        return watchers.size();
+    }
+
+    /**
+     * Returns the presence of every client. A client that starts
+     * watching is added to the watchers first, so that any change made
+     * while this is taken is also in a later flush.
+     *
+     * @return The event, with the number of the last flush.
+     */
+    public synchronized PresenceEvent snapshot() {
+        String[] names = new String[states.size()];
+        int[] presence = new int[states.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> e : states.entrySet()) {
+            names[i] = e.getKey();
+            presence[i++] = e.getValue();
+        }
+        return new PresenceEvent(source, serial, names, presence);
+    }
+
+    /**
+     * Sends the clients whose presence is not what it was at the last
+     * flush to every watcher, as one event. Does nothing if there are
+     * none.
+     */
+    public void flush() {
+        PresenceEvent event;
+        synchronized (this) {
+            if (changed.isEmpty())
+                return;
+            ArrayList<String> names = new ArrayList<String>(changed.size());
+            for (Map.Entry<String, Integer> e : changed.entrySet()) {
+                if (stateOf(e.getKey()) != e.getValue())
+                    names.add(e.getKey());
+            }
+            changed.clear();
+            if (names.isEmpty())
+                return;
+
+            int[] presence = new int[names.size()];
+            for (int i = 0; i < presence.length; i++)
+                presence[i] = stateOf(names.get(i));
+            event = new PresenceEvent(source, ++serial,
+                    names.toArray(new String[names.size()]), presence);
+        }
+        for (ClientMailbox mailbox : watchers)
+            mailbox.offerPresence(event);
+    }
+}
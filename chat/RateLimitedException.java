@@ -0,0 +1,36 @@
+// RateLimitedException.java
+// 2026-10-18 First version
+
+/**
+ * This exception is thrown by a ChatServer to a client that sends
+ * messages faster than the server allows (see RateLimiter). The message
+ * was not accepted. The client may send it again once the time given by
+ * getRetryAfterMillis () has passed.
+ */
+public class RateLimitedException extends java.rmi.RemoteException
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * How long the client should wait before it sends again.
+   */
+  protected final long retryAfterMillis;
+
+  /**
+   * Creates a new RateLimitedException instance.
+   * @param retryAfterMillis How long the client should wait, in
+   *                         milliseconds, before it sends again.
+   */
+  public RateLimitedException (long retryAfterMillis) {
+    super ("Sending too fast, retry after " + retryAfterMillis + " ms");
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  /**
+   * Returns how long the client should wait before it sends again.
+   * @return The time in milliseconds.
+   */
+  public long getRetryAfterMillis () {
+    return retryAfterMillis;
+  }
+}
@@ -0,0 +1,134 @@
+// RateLimiter.java
+// 2026-10-18 First version
+//
+// Per-client limits on how fast messages are accepted.
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A RateLimiter decides whether a client may send another message. Each
+ * client may send a burst of messages at once, and after that a steady
+ * rate of messages per second.
+ *
+ * The limit is kept with the generic cell rate algorithm, which works
+ * like a token bucket but needs only one number per client: the time at
+ * which the client's bucket will be full again, were it to stop sending
+ * (the theoretical arrival time). Each message moves that time on by
+ * one interval, and a message is refused if that would put it more than
+ * a burst of intervals ahead of now. The time is kept in an AtomicLong
+ * and moved on with compareAndSet, so checking a message takes constant
+ * time and no lock. The RateLimiter itself only holds the settings and
+ * is shared by all clients; each client mailbox holds its own AtomicLong.
+ *
+ * What happens to a message that is refused depends on the policy: it
+ * is rejected with a RateLimitedException, or the call is held until it
+ * may be accepted, up to maxDelayMillis.
+ */
+public class RateLimiter
+{
+    /**
+     * What to do with a message that arrives too early.
+     */
+    public enum Policy {
+        /** Refuse it with a RateLimitedException. */
+        REJECT,
+        /** Hold the call until it may be accepted, up to a limit. */
+        DELAY
+    }
+
+    /**
+     * The longest a whole burst may take at the steady rate, in
+     * nanoseconds: a year. It keeps the times moved on in tryAcquire()
+     * far from overflowing, however slow the rate or large the burst.
+     */
+    protected static final long MAX_SPAN = TimeUnit.DAYS.toNanos(365);
+
+    /**
+     * The time between two messages at the steady rate, in nanoseconds.
+     */
+    protected final long interval;
+
+    /**
+     * How far ahead of now the theoretical arrival time may be, in
+     * nanoseconds: the burst less one message.
+     */
+    protected final long tolerance;
+
+    protected final Policy policy;
+
+    /**
+     * The longest a call is held under the DELAY policy, in nanoseconds.
+     */
+    protected final long maxDelay;
+
+    /**
+     * Creates a new RateLimiter.
+     *
+     * @param rate           The steady rate, in messages per second.
+     * @param burst          The number of messages a client may send at
+     *                       once.
+     * @param policy         What to do with a message that is too early.
+     * @param maxDelayMillis The longest a call is held under DELAY.
+     * @throws IllegalArgumentException If the rate is not positive.
+     */
+    public RateLimiter(double rate, int burst, Policy policy, long maxDelayMillis) {
+        if (!(rate > 0) || Double.isInfinite(rate))
+            throw new IllegalArgumentException("Not a rate: " + rate);
+        burst = Math.max(1, burst);
+        interval = Math.max(1, Math.min(MAX_SPAN / burst,
+                (long) (TimeUnit.SECONDS.toNanos(1) / rate)));
+        tolerance = interval * (burst - 1);
+        this.policy = policy;
+        maxDelay = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMillis));
+    }
+
+    /**
+     * Takes one message of a client, if it is within the limit.
+     *
+     * @param tat The client's theoretical arrival time; 0 for a client
+     *            that has not sent anything.
+     * @param now The current time, from System.nanoTime().
+     * @return 0 if the message is accepted, otherwise how many
+     *         nanoseconds from now it would be.
+     */
+    public long tryAcquire(AtomicLong tat, long now) {
+        while (true) {
+            long current = tat.get();
+            long start = (current == 0 || current - now < 0) ? now : current;
+            long wait = start - now - tolerance;
+            if (wait > 0)
+                return wait;
+            if (tat.compareAndSet(current, start + interval))
+                return 0;
+        }
+    }
+
+    /**
+     * Takes one message of a client, applying the policy to a message
+     * that is too early.
+     *
+     * @param tat The client's theoretical arrival time.
+     * @throws RateLimitedException If the message is refused.
+     */
+    public void acquire(AtomicLong tat) throws RateLimitedException {
+        long wait = tryAcquire(tat, System.nanoTime());
+        if (wait == 0)
+            return;
+        if (policy == Policy.DELAY && wait <= maxDelay) {
+            long deadline = System.nanoTime() + maxDelay;
+            do {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException iex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                wait = tryAcquire(tat, System.nanoTime());
+                if (wait == 0)
+                    return;
+            } while (System.nanoTime() + wait - deadline <= 0);
+        }
+        throw new RateLimitedException(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+    }
+}
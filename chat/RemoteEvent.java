@@ -7,12 +7,34 @@
  * something similar anyway, and were already using RemoteEvent.
  *
  * Instances of RemoteEvent are sent to remote event listeners.
+ *
+ * RemoteEvent is Externalizable, so that an event is sent as a few
+ * raw fields instead of the full serialized form with the descriptors
+ * of every class in the hierarchy. The source object itself is never
+ * sent (it is transient in EventObject); instead the receiver gets a
+ * lightweight source identifier through getSourceID (). On the
+ * receiving side, getSource () returns a placeholder. Subclasses must
+ * have a public no-argument constructor and extend writeExternal ()
+ * and readExternal () with their own fields.
  */
 public class RemoteEvent extends java.util.EventObject
+  implements java.io.Externalizable
 {
+  /**
+   * Stands in for the source of an event that was received remotely.
+   */
+  protected static final Object REMOTE_SOURCE = "remote";
+
+  /**
+   * Flag bits of the externalized form.
+   */
+  protected static final int HAS_EVENT_ID = 0x01;
+  protected static final int HAS_HANDBACK = 0x02;
+
   protected long eventID;
   protected java.rmi.MarshalledObject handback;
   protected long seqNum;
+  protected long sourceID;
 
   /**
    * Creates a new RemoteEvent instance.
@@ -31,6 +53,15 @@ public class RemoteEvent extends java.util.EventObject
     this.eventID = eventID;
     this.handback = handback;
     this.seqNum = seqNum;
+    this.sourceID = source.hashCode ();
+  }
+
+  /**
+   * Creates an empty RemoteEvent, to be filled in by readExternal ().
+   */
+  public RemoteEvent ()
+  {
+    super(REMOTE_SOURCE);
   }
 
   public long getID() {
@@ -44,4 +75,46 @@ public class RemoteEvent extends java.util.EventObject
   public long getSequenceNumber() {
     return seqNum;
   }
+
+  /**
+   * Returns an identifier of the source of the event. It is the
+   * hashCode () of the source, which for a remote object such as a
+   * ChatServer is the same in every JVM that refers to it.
+   *
+   * @return The identifier of the source.
+   */
+  public long getSourceID() {
+    return sourceID;
+  }
+
+  public void writeExternal(java.io.ObjectOutput out)
+    throws java.io.IOException
+  {
+    // The event ID and the handback are rarely used, so a flag byte
+    // tells whether they follow.
+
+    int flags = ((eventID != 0) ? HAS_EVENT_ID : 0)
+      | ((handback != null) ? HAS_HANDBACK : 0);
+
+    out.writeByte(flags);
+    out.writeLong(sourceID);
+    out.writeLong(seqNum);
+    if (eventID != 0)
+      out.writeLong(eventID);
+    if (handback != null)
+      out.writeObject(handback);
+  }
+
+  public void readExternal(java.io.ObjectInput in)
+    throws java.io.IOException, ClassNotFoundException
+  {
+    int flags = in.readByte();
+
+    sourceID = in.readLong();
+    seqNum = in.readLong();
+    if ((flags & HAS_EVENT_ID) != 0)
+      eventID = in.readLong();
+    if ((flags & HAS_HANDBACK) != 0)
+      handback = (java.rmi.MarshalledObject) in.readObject();
+  }
 }
@@ -0,0 +1,63 @@
+// TimeoutSocketFactory.java
+// 2026-10-18 First version
+//
+// RMI sockets with connect and read timeouts.
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+
+/**
+ * TimeoutSocketFactory makes the sockets that RMI uses for outgoing
+ * calls give up on a dead peer quickly. Without it, a call to a client
+ * whose host has gone away waits for the operating system's connect
+ * timeout, which can be minutes, and a call to a client that has hung
+ * waits forever for the reply.
+ *
+ * The ChatServer installs it as the default RMI socket factory, so it
+ * applies to the notify() calls made to every client.
+ */
+public class TimeoutSocketFactory extends RMISocketFactory
+{
+    /**
+     * How long to wait for a connection to be set up, in milliseconds.
+     */
+    protected final int connectTimeoutMillis;
+
+    /**
+     * How long to wait for data on a connection, in milliseconds.
+     */
+    protected final int readTimeoutMillis;
+
+    /**
+     * Creates a new TimeoutSocketFactory. A timeout of zero means
+     * waiting forever.
+     *
+     * @param connectTimeoutMillis The connect timeout.
+     * @param readTimeoutMillis    The read timeout.
+     */
+    public TimeoutSocketFactory(int connectTimeoutMillis, int readTimeoutMillis) {
+        this.connectTimeoutMillis = Math.max(0, connectTimeoutMillis);
+        this.readTimeoutMillis = Math.max(0, readTimeoutMillis);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            socket.setSoTimeout(readTimeoutMillis);
+        } catch (IOException iox) {
+            socket.close();
+            throw iox;
+        }
+        return socket;
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        return new ServerSocket(port);
+    }
+}
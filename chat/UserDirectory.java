@@ -0,0 +1,256 @@
+// UserDirectory.java
+// 2026-10-18 First version
+//
+// The registered clients of a ChatServer, by listener and by name.
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * UserDirectory keeps the registered clients of a ChatServer. Each
+ * client is represented by its ClientMailbox, which also carries the
+ * client's current name, and can be looked up in constant time both by
+ * its RemoteEventListener and by its name.
+ *
+ * Lookups read the concurrent maps without locking. Changes (add,
+ * remove, rename) lock the directory, so that the two maps always agree
+ * and a name is never given to two clients. No remote calls are made
+ * while the lock is held.
+ *
+ * When a requested name is taken, the client gets the name with the
+ * smallest numeric postfix that is free. The smallest postfix that may
+ * be free is kept per name, so finding one does not mean probing 1, 2,
+ * 3, ... each time; it is lowered again when a variant is given up, and
+ * forgotten once the name and all its variants are free.
+ *
+ * The sorted list of names is kept until a client comes, goes or is
+ * renamed, so that listing the users again and again costs nothing.
+ */
+public class UserDirectory
+{
+    /**
+     * The mailboxes of the registered clients, by listener.
+     */
+    protected final ConcurrentHashMap<RemoteEventListener, ClientMailbox> byListener =
+            new ConcurrentHashMap<RemoteEventListener, ClientMailbox>();
+
+    /**
+     * The mailboxes of the registered clients, by current name.
+     */
+    protected final ConcurrentHashMap<String, ClientMailbox> byName =
+            new ConcurrentHashMap<String, ClientMailbox>();
+
+    /**
+     * The postfixes of each name that has variants in use. Guarded by
+     * this.
+     */
+    protected final Map<String, Postfixes> postfixes =
+            new HashMap<String, Postfixes>();
+
+    /**
+     * The variants given out by claim() that are still in use, with
+     * the name each is a variant of. Guarded by this.
+     */
+    protected final Map<String, String> variants =
+            new HashMap<String, String>();
+
+    /**
+     * The postfixes of one name. Every postfix below next is in use.
+     */
+    protected static final class Postfixes {
+        int next = 1;
+        int inUse = 0;
+    }
+
+    /**
+     * The names of the registered clients, sorted, or null if they have
+     * changed since the list was last made. Only set with the lock held.
+     */
+    protected volatile String[] sortedNames = null;
+
+    /**
+     * Returns the mailbox of a listener.
+     *
+     * @param rel The listener.
+     * @return The listener's mailbox, or null if it is not registered.
+     */
+    public ClientMailbox get(RemoteEventListener rel) {
+        return byListener.get(rel);
+    }
+
+    /**
+     * Returns the mailbox of the client with a given name.
+     *
+     * @param name The client name.
+     * @return The client's mailbox, or null if no client has that name.
+     */
+    public ClientMailbox getByName(String name) {
+        return byName.get(name);
+    }
+
+    public boolean containsName(String name) {
+        return byName.containsKey(name);
+    }
+
+    public int size() {
+        return byListener.size();
+    }
+
+    /**
+     * Returns a live view of all mailboxes, for distribution. It can be
+     * iterated while clients come and go.
+     *
+     * @return The mailboxes of the registered clients.
+     */
+    public Collection<ClientMailbox> mailboxes() {
+        return byListener.values();
+    }
+
+    /**
+     * Returns the names of all registered clients, sorted. The list is
+     * made under the lock, so it reflects one moment in time, and then
+     * returned to every caller until the clients change.
+     *
+     * @return The client names. The array is shared and must not be
+     *         changed.
+     */
+    public String[] names() {
+        String[] names = sortedNames;
+        if (names != null)
+            return names;
+        synchronized (this) {
+            if (sortedNames == null) {
+                names = byName.keySet().toArray(new String[0]);
+                Arrays.sort(names);
+                sortedNames = names;
+            }
+            return sortedNames;
+        }
+    }
+
+    /**
+     * Adds a client under the requested name, or a variant of it if the
+     * name is taken. A listener that is already registered is left as
+     * it is.
+     *
+     * @param mailbox The mailbox of the new client.
+     * @param name    The name the client asked for.
+     * @return The name the client got, or null if it was already
+     *         registered.
+     */
+    public synchronized String add(ClientMailbox mailbox, String name) {
+        if (byListener.containsKey(mailbox.getListener()))
+            return null;
+
+        String assigned = claim(name, mailbox);
+        byListener.put(mailbox.getListener(), mailbox);
+        sortedNames = null;
+        return assigned;
+    }
+
+    /**
+     * Removes a client.
+     *
+     * @param rel The listener of the client.
+     * @return The client's mailbox, or null if it was not registered.
+     */
+    public synchronized ClientMailbox remove(RemoteEventListener rel) {
+        ClientMailbox mailbox = byListener.remove(rel);
+        if (mailbox != null) {
+            if (byName.remove(mailbox.getName(), mailbox))
+                release(mailbox.getName());
+            sortedNames = null;
+        }
+        return mailbox;
+    }
+
+    /**
+     * Gives a client a new name, or a variant of it if the name is
+     * taken. Renaming a client to its current name, or one that has been
+     * removed meanwhile, leaves it unchanged.
+     *
+     * @param mailbox The mailbox of the client.
+     * @param name    The name the client asked for.
+     * @return The name the client got.
+     */
+    public synchronized String rename(ClientMailbox mailbox, String name) {
+        String oldName = mailbox.getName();
+        if (name.equals(oldName) || byListener.get(mailbox.getListener()) != mailbox)
+            return oldName;
+
+        if (byName.remove(oldName, mailbox))
+            release(oldName);
+        sortedNames = null;
+        return claim(name, mailbox);
+    }
+
+    /**
+     * Takes the requested name, or the name with the next free postfix,
+     * for a client. Must be called with the lock held.
+     */
+    protected String claim(String name, ClientMailbox mailbox) {
+        String assigned = name;
+
+        if (byName.putIfAbsent(assigned, mailbox) != null) {
+            Postfixes p = postfixes.get(name);
+            if (p == null) {
+                p = new Postfixes();
+                postfixes.put(name, p);
+            }
+            int postfix = p.next;
+            do {
+                assigned = name + postfix++;
+            } while (byName.putIfAbsent(assigned, mailbox) != null);
+            p.next = postfix;
+            p.inUse++;
+            variants.put(assigned, name);
+        }
+
+        mailbox.setName(assigned);
+        return assigned;
+    }
+
+    /**
+     * Notes that a name is no longer in use. If it ends in a postfix of
+     * a name with variants, that postfix is free to be given out again;
+     * if it was the last variant given out, and the name itself is
+     * free, the name's postfixes are forgotten. Must be called with the
+     * lock held.
+     */
+    protected void release(String name) {
+        String base = variants.remove(name);
+        if (base != null) {
+            Postfixes p = postfixes.get(base);
+            p.inUse--;
+            lowerNext(base, p, name);
+        } else {
+            // A name chosen by its client, which may still look like a
+            // variant, or one that has variants itself.
+            int i = name.length();
+            while (i > 0 && Character.isDigit(name.charAt(i - 1)))
+                i--;
+            base = name.substring(0, i);
+            Postfixes p = (i < name.length()) ? postfixes.get(base) : null;
+            if (p != null)
+                lowerNext(base, p, name);
+            else
+                base = name;
+        }
+        Postfixes p = postfixes.get(base);
+        if (p != null && p.inUse == 0 && !byName.containsKey(base))
+            postfixes.remove(base);
+    }
+
+    /**
+     * Lowers the next postfix of a name to that of a variant given up.
+     */
+    protected void lowerNext(String base, Postfixes p, String variant) {
+        String digits = variant.substring(base.length());
+        if (digits.length() > 9 || digits.startsWith("0"))
+            return;
+        p.next = Math.min(p.next, Integer.parseInt(digits));
+    }
+}